@@ -0,0 +1,199 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A model of one level of a set-associative cache of physical memory. Only
+ * the tags are kept, since the data always comes from main memory; the
+ * model exists to count hits and misses, and to let the processor charge
+ * extra ticks for accesses that miss.
+ *
+ * <p>
+ * The cache is write-back and write-allocate. A dirty line that is evicted
+ * is written to the next level, if there is one, without charging any
+ * ticks.
+ *
+ * <p>
+ * The geometry of a cache named <i>name</i> is read from the
+ * <tt>Cache.<i>name</i>.size</tt>, <tt>Cache.<i>name</i>.associativity</tt>,
+ * <tt>Cache.<i>name</i>.lineSize</tt>, <tt>Cache.<i>name</i>.latency</tt>
+ * and <tt>Cache.<i>name</i>.replacement</tt> configuration keys, the last
+ * being one of <tt>lru</tt>, <tt>fifo</tt> or <tt>random</tt>.
+ */
+public final class Cache {
+    /**
+     * Allocate a new cache. Each parameter is a default, used only if the
+     * corresponding configuration key is not set.
+     *
+     * @param	name		the name of the cache, such as <tt>L1D</tt>.
+     * @param	size		the size of the cache, in bytes.
+     * @param	associativity	the number of lines in each set.
+     * @param	lineSize	the size of a line, in bytes.
+     * @param	latency		the number of ticks charged for each access
+     *				that reaches this cache.
+     * @param	next		the next level of the hierarchy, or
+     *				<tt>null</tt> if misses go to main memory.
+     */
+    public Cache(String name, int size, int associativity, int lineSize,
+		 int latency, Cache next) {
+	String prefix = "Cache." + name + ".";
+
+	this.name = name;
+	this.next = next;
+
+	size = Config.getInteger(prefix + "size", size);
+	associativity = Config.getInteger(prefix + "associativity",
+					  associativity);
+	lineSize = Config.getInteger(prefix + "lineSize", lineSize);
+	this.latency = Config.getInteger(prefix + "latency", latency);
+
+	Lib.assertTrue(lineSize >= 4 && (lineSize & (lineSize-1)) == 0,
+		       prefix + "lineSize must be a power of 2");
+	Lib.assertTrue(associativity > 0 &&
+		       size % (lineSize * associativity) == 0,
+		       prefix + "size must be a multiple of lineSize times " +
+		       "associativity");
+
+	int numSets = size / (lineSize * associativity);
+	Lib.assertTrue(numSets > 0 && (numSets & (numSets-1)) == 0,
+		       "Cache." + name + " must have a power of 2 sets");
+
+	String replacement = Config.getString(prefix + "replacement", "lru");
+	if (replacement.equals("lru"))
+	    policy = policyLRU;
+	else if (replacement.equals("fifo"))
+	    policy = policyFIFO;
+	else if (replacement.equals("random"))
+	    policy = policyRandom;
+	else {
+	    Lib.assertNotReached("unknown " + prefix + "replacement: " +
+				 replacement);
+	    policy = policyLRU;
+	}
+
+	this.associativity = associativity;
+	lineShift = Integer.numberOfTrailingZeros(lineSize);
+	setMask = numSets - 1;
+
+	lines = new int[numSets * associativity];
+	stamps = new long[numSets * associativity];
+	dirty = new boolean[numSets * associativity];
+	for (int i=0; i<lines.length; i++)
+	    lines[i] = -1;
+    }
+
+    /**
+     * Return the name of this cache.
+     *
+     * @return	the name of this cache.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Return the number of ticks charged for each access that reaches this
+     * cache.
+     *
+     * @return	the latency of this cache.
+     */
+    public int getLatency() {
+	return latency;
+    }
+
+    /**
+     * Return the next level of the hierarchy.
+     *
+     * @return	the next level, or <tt>null</tt> if misses go to main memory.
+     */
+    public Cache getNext() {
+	return next;
+    }
+
+    /**
+     * Access the line containing a physical address, loading it into the
+     * cache if it is not already present.
+     *
+     * @param	paddr	the physical address being accessed.
+     * @param	write	<tt>true</tt> if the access is a write.
+     * @return	<tt>true</tt> if the line was already present.
+     */
+    public boolean access(int paddr, boolean write) {
+	int line = paddr >>> lineShift;
+	int first = (line & setMask) * associativity;
+
+	time++;
+
+	for (int i=first; i<first+associativity; i++) {
+	    if (lines[i] == line) {
+		if (policy == policyLRU)
+		    stamps[i] = time;
+		if (write)
+		    dirty[i] = true;
+		return true;
+	    }
+	}
+
+	int victim = chooseVictim(first);
+
+	if (lines[victim] != -1 && dirty[victim] && next != null)
+	    next.access(lines[victim] << lineShift, true);
+
+	lines[victim] = line;
+	stamps[victim] = time;
+	dirty[victim] = write;
+
+	return false;
+    }
+
+    /**
+     * Choose the line to replace in a set, preferring an empty line.
+     *
+     * @param	first	the index of the first line in the set.
+     * @return	the index of the line to replace.
+     */
+    private int chooseVictim(int first) {
+	for (int i=first; i<first+associativity; i++) {
+	    if (lines[i] == -1)
+		return i;
+	}
+
+	if (policy == policyRandom)
+	    return first + Lib.random(associativity);
+
+	// both LRU and FIFO replace the oldest stamp
+	int victim = first;
+	for (int i=first+1; i<first+associativity; i++) {
+	    if (stamps[i] < stamps[victim])
+		victim = i;
+	}
+
+	return victim;
+    }
+
+    private String name;
+    private Cache next;
+    private int latency;
+    private int associativity;
+    private int lineShift;
+    private int setMask;
+    private int policy;
+
+    /**
+     * The line address held in each line of each set, or <tt>-1</tt> if the
+     * line is empty. Set <i>s</i> occupies indices <i>s</i> times the
+     * associativity onwards.
+     */
+    private int[] lines;
+    /**
+     * The time each line was filled, or for LRU replacement, last used.
+     */
+    private long[] stamps;
+    private boolean[] dirty;
+    /** The number of accesses so far, used as a clock for the stamps. */
+    private long time = 0;
+
+    private static final int policyLRU = 0;
+    private static final int policyFIFO = 1;
+    private static final int policyRandom = 2;
+}
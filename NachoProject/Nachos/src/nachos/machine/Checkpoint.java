@@ -0,0 +1,175 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/**
+ * A snapshot of a single user process and the hardware around it, so that a
+ * long-running program can be resumed from the middle instead of started
+ * over. With <tt>-saveprocess</tt>, the processor registers, the page table,
+ * physical memory, the pending interrupts, the statistics and the random
+ * number generator are written to a file at the first user instruction
+ * boundary at or after a chosen tick. With <tt>-resumeprocess</tt>, a new
+ * run puts all of these back the first time the processor starts running a
+ * user program, and carries on from there.
+ *
+ * <p>
+ * This is not a checkpoint of the whole machine: a resume does not skip
+ * booting the kernel, and TLB contents, other processes' page tables and
+ * device state are not saved. The kernel keeps its threads, scheduler, open
+ * files and child processes in Java objects the machine cannot see, so it
+ * still initializes as usual, and a resume relies on it having rebuilt the
+ * same state itself by the time it first runs a user program. What is saved
+ * is the simulated work after that point.
+ *
+ * <p>
+ * In practice this means a kernel running a single user process with a
+ * single-level page table, started with the same program and configuration.
+ * Kernels that use the TLB, that have set more than one page table, or that
+ * run with the cache model, are refused with an assertion, both when saving
+ * and when resuming. The resume also checks that the kernel mapped the same
+ * virtual pages to the same physical pages. The state of the console and
+ * network devices and the profile are not captured.
+ */
+public final class Checkpoint {
+    private Checkpoint(byte[] image) {
+	this.image = image;
+    }
+
+    /**
+     * Read a checkpoint written by <tt>save()</tt>. Called before the
+     * security manager is enabled.
+     *
+     * @param	fileName	the file to read.
+     * @return	the checkpoint.
+     */
+    public static Checkpoint load(String fileName) throws IOException {
+	byte[] image = Files.readAllBytes(Paths.get(fileName));
+
+	if (image.length < 8 ||
+	    new DataInputStream(new ByteArrayInputStream(image)).readInt()
+	    != magic)
+	    throw new IOException(fileName + " is not a checkpoint");
+
+	return new Checkpoint(image);
+    }
+
+    /**
+     * Write the state of the machine to a file. Must be called at an
+     * instruction boundary, with no ticks owed to the interrupt controller.
+     *
+     * @param	fileName	the file to write.
+     * @param	processor	the processor.
+     * @param	interrupt	the interrupt controller.
+     * @param	stats		the statistics.
+     */
+    static void save(String fileName, Processor processor,
+		     Interrupt interrupt, Stats stats) throws IOException {
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+	    new FileOutputStream(fileName)));
+
+	try {
+	    out.writeInt(magic);
+	    out.writeInt(version);
+
+	    Field[] fields = statsFields();
+	    out.writeInt(fields.length);
+	    for (Field field : fields) {
+		out.writeUTF(field.getName());
+		out.writeLong(field.getLong(stats));
+	    }
+
+	    out.writeLong(Lib.getRandomState());
+
+	    processor.saveState(out);
+	    interrupt.saveState(out);
+	}
+	catch (IllegalAccessException e) {
+	    throw new IOException(e.toString());
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Put the machine back in the state this checkpoint recorded.
+     *
+     * @param	processor	the processor.
+     * @param	interrupt	the interrupt controller.
+     * @param	stats		the statistics.
+     */
+    void restore(Processor processor, Interrupt interrupt, Stats stats) {
+	DataInputStream in =
+	    new DataInputStream(new ByteArrayInputStream(image));
+
+	try {
+	    in.readInt();
+	    if (in.readInt() != version)
+		Lib.assertNotReached("checkpoint is from another version");
+
+	    long previousTime = stats.totalTicks;
+
+	    Field[] fields = statsFields();
+	    int numFields = in.readInt();
+	    for (int i=0; i<numFields; i++) {
+		String name = in.readUTF();
+		long value = in.readLong();
+		for (Field field : fields) {
+		    if (!field.getName().equals(name))
+			continue;
+		    if (field.getType() == int.class)
+			field.setInt(stats, (int) value);
+		    else
+			field.setLong(stats, value);
+		}
+	    }
+
+	    Lib.setRandomState(in.readLong());
+
+	    processor.restoreState(in);
+	    interrupt.restoreState(in, previousTime);
+	}
+	catch (EOFException e) {
+	    Lib.assertNotReached("truncated checkpoint");
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to read checkpoint: " + e);
+	}
+	catch (IllegalAccessException e) {
+	    Lib.assertNotReached("unable to read checkpoint: " + e);
+	}
+    }
+
+    /**
+     * Return the counters of <tt>Stats</tt>, in the order they are saved.
+     */
+    private static Field[] statsFields() {
+	ArrayList<Field> counters = new ArrayList<Field>();
+
+	for (Field field : Stats.class.getFields()) {
+	    if (!Modifier.isStatic(field.getModifiers()) &&
+		(field.getType() == long.class || field.getType() == int.class))
+		counters.add(field);
+	}
+
+	return counters.toArray(new Field[counters.size()]);
+    }
+
+    private byte[] image;
+
+    private static final int magic = 0x4E434B50;
+    private static final int version = 1;
+}
@@ -90,6 +90,9 @@ public class Coff {
 		}
 	    }
 	}
+
+	if (Machine.processor() != null)
+	    Machine.processor().profileExecutable(file.getName(), this);
     }
 
     /**
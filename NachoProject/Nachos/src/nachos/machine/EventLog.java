@@ -0,0 +1,353 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A log of the events that reach the machine from outside the simulation,
+ * used to make a run repeatable. Given the same random seed, everything
+ * Nachos does is determined by its inputs: the bytes typed at the console,
+ * the packets that arrive on the network link, and the link address it was
+ * able to acquire. With <tt>-record</tt>, each such input is written to a
+ * binary file along with the tick at which the machine took it. With
+ * <tt>-replay</tt>, the same inputs are fed back from the file at exactly
+ * the same ticks, instead of from the host, and the random seed is taken
+ * from the file.
+ *
+ * <p>
+ * The firing time of every timer interrupt is also recorded. A replay checks
+ * these against its own timer, so that a replay that has diverged from the
+ * recording, because the kernel or its configuration changed, is reported as
+ * soon as possible.
+ *
+ * <p>
+ * The file starts with a header holding the random seed. Each event is a
+ * type byte, the ticks since the previous event as a variable length
+ * integer, and any data.
+ */
+public final class EventLog {
+    /**
+     * Start recording events to a file.
+     *
+     * @param	fileName	the file to record to.
+     * @param	randomSeed	the seed of the run being recorded.
+     * @param	stats		the statistics holding the current time.
+     */
+    public static EventLog record(String fileName, long randomSeed,
+				  Stats stats) throws IOException {
+	EventLog log = new EventLog(stats, false);
+
+	log.out = new DataOutputStream(new BufferedOutputStream(
+	    new FileOutputStream(fileName)));
+	log.out.writeInt(magic);
+	log.out.writeLong(randomSeed);
+	log.randomSeed = randomSeed;
+
+	return log;
+    }
+
+    /**
+     * Start replaying events from a file written by <tt>record()</tt>.
+     *
+     * @param	fileName	the file to replay.
+     * @param	stats		the statistics holding the current time.
+     */
+    public static EventLog replay(String fileName, Stats stats)
+	throws IOException {
+	EventLog log = new EventLog(stats, true);
+
+	log.in = new DataInputStream(new BufferedInputStream(
+	    new FileInputStream(fileName)));
+	if (log.in.readInt() != magic)
+	    throw new IOException(fileName + " is not an event log");
+	log.randomSeed = log.in.readLong();
+	log.readEvent();
+
+	return log;
+    }
+
+    private EventLog(Stats stats, boolean replaying) {
+	this.stats = stats;
+	this.replaying = replaying;
+    }
+
+    /**
+     * Return the random seed of the recorded run.
+     *
+     * @return	the random seed.
+     */
+    public long getRandomSeed() {
+	return randomSeed;
+    }
+
+    /**
+     * Test whether inputs should come from this log rather than the host.
+     *
+     * @return	<tt>true</tt> if this log is being replayed.
+     */
+    public boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Record the result of polling the console.
+     *
+     * @param	c	the byte read, or <tt>-1</tt> if none was available.
+     */
+    public void recordConsole(int c) {
+	if (!replaying && c != -1) {
+	    writeEvent(eventConsole);
+	    write(c);
+	}
+    }
+
+    /**
+     * Poll the console during a replay.
+     *
+     * @return	the byte read at this tick in the recording, or <tt>-1</tt>
+     *		if none was.
+     */
+    public int replayConsole() {
+	if (!takeEvent(eventConsole, false))
+	    return -1;
+
+	return takenData[0] & 0xFF;
+    }
+
+    /**
+     * Record a packet taken from the network.
+     *
+     * @param	packetBytes	the contents of the packet.
+     */
+    public void recordPacket(byte[] packetBytes) {
+	if (!replaying) {
+	    writeEvent(eventPacket);
+	    writeNumber(packetBytes.length);
+	    write(packetBytes);
+	}
+    }
+
+    /**
+     * Poll the network during a replay.
+     *
+     * @return	the contents of the packet taken at this tick in the
+     *		recording, or <tt>null</tt> if none was.
+     */
+    public byte[] replayPacket() {
+	if (!takeEvent(eventPacket, false))
+	    return null;
+
+	return takenData;
+    }
+
+    /**
+     * Record the address the network link acquired.
+     *
+     * @param	linkAddress	the link address.
+     */
+    public void recordLinkAddress(int linkAddress) {
+	if (!replaying) {
+	    writeEvent(eventLinkAddress);
+	    write(linkAddress);
+	}
+    }
+
+    /**
+     * Return the address the network link acquired in the recording.
+     *
+     * @return	the link address.
+     */
+    public int replayLinkAddress() {
+	takeEvent(eventLinkAddress, true);
+
+	return takenData[0];
+    }
+
+    /**
+     * Record a timer interrupt, or during a replay, check that the recording
+     * had one at this tick.
+     */
+    public void timerInterrupt() {
+	if (replaying)
+	    takeEvent(eventTimer, true);
+	else
+	    writeEvent(eventTimer);
+    }
+
+    /**
+     * Write out any buffered events. Called when Nachos exits.
+     */
+    public void flush() {
+	try {
+	    if (out != null)
+		out.flush();
+	}
+	catch (IOException e) {
+	    System.out.println("unable to write event log: " + e);
+	}
+    }
+
+    /**
+     * Consume the next recorded event if it has the specified type and
+     * happened at the current tick.
+     *
+     * @param	type		the type of event wanted.
+     * @param	required	<tt>true</tt> if the recording must have such
+     *				an event now.
+     * @return	<tt>true</tt> if the event was consumed, in which case its
+     *		data is in <tt>takenData</tt>.
+     */
+    private boolean takeEvent(int type, boolean required) {
+	Lib.assertTrue(replaying);
+
+	long time = stats.totalTicks;
+
+	if (nextType == type && nextTime == time) {
+	    takenData = nextData;
+	    readEvent();
+	    return true;
+	}
+
+	// an event that should already have happened never will
+	if (nextType == eventEnd && required) {
+	    Lib.assertNotReached("replay diverged at tick " + time
+				 + ": recording has ended");
+	}
+	else if (required || nextTime < time) {
+	    Lib.assertNotReached("replay diverged at tick " + time
+				 + ": recording has " + describe(nextType)
+				 + " at tick " + nextTime);
+	}
+
+	return false;
+    }
+
+    private static String describe(int type) {
+	switch (type) {
+	case eventConsole:	return "console input";
+	case eventPacket:	return "a packet";
+	case eventLinkAddress:	return "a link address";
+	default:		return "a timer interrupt";
+	}
+    }
+
+    /**
+     * Read the next event of the recording into <tt>nextType</tt>,
+     * <tt>nextTime</tt> and <tt>nextData</tt>.
+     */
+    private void readEvent() {
+	try {
+	    int type = in.read();
+	    if (type == -1) {
+		nextType = eventEnd;
+		nextTime = Long.MAX_VALUE;
+		return;
+	    }
+
+	    long time = lastTime + readNumber();
+	    byte[] data = null;
+
+	    switch (type) {
+	    case eventConsole:
+	    case eventLinkAddress:
+		data = new byte[] { in.readByte() };
+		break;
+	    case eventPacket:
+		data = new byte[(int) readNumber()];
+		in.readFully(data);
+		break;
+	    case eventTimer:
+		break;
+	    default:
+		Lib.assertNotReached("corrupt event log");
+	    }
+
+	    nextType = type;
+	    nextTime = time;
+	    nextData = data;
+	    lastTime = time;
+	}
+	catch (EOFException e) {
+	    Lib.assertNotReached("truncated event log");
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to read event log: " + e);
+	}
+    }
+
+    private long readNumber() throws IOException {
+	long value = 0;
+	for (int shift=0; ; shift+=7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    private void writeEvent(int type) {
+	long time = stats.totalTicks;
+
+	write(type);
+	writeNumber(time - lastTime);
+	lastTime = time;
+    }
+
+    private void writeNumber(long value) {
+	while ((value & ~0x7FL) != 0) {
+	    write((int) (value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	write((int) value);
+    }
+
+    private void write(int b) {
+	try {
+	    out.write(b);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to write event log: " + e);
+	}
+    }
+
+    private void write(byte[] bytes) {
+	try {
+	    out.write(bytes);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to write event log: " + e);
+	}
+    }
+
+    private Stats stats;
+    private boolean replaying;
+    private long randomSeed;
+
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+
+    /** The time of the last event read or written. */
+    private long lastTime = 0;
+    /** The next event of a recording being replayed. */
+    private int nextType;
+    private long nextTime;
+    private byte[] nextData;
+    /** The data of the event last consumed by <tt>takeEvent()</tt>. */
+    private byte[] takenData;
+
+    private static final int magic = 0x4E455654;
+
+    private static final int eventEnd = -1;
+    private static final int eventConsole = 0;
+    private static final int eventPacket = 1;
+    private static final int eventLinkAddress = 2;
+    private static final int eventTimer = 3;
+}
@@ -4,9 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +55,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingQueue(initialCapacity);
+
+	tickless = Config.getBoolean("Interrupt.tickless", false);
     }
 
     /**
@@ -120,17 +124,44 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Let simulated time pass up to the last kernel tick before the next
+     * pending interrupt is due, as if the kernel had spent it idling. Called
+     * by the idle thread before each yield, so that the next kernel tick
+     * makes the interrupt due, instead of the many it would otherwise take.
+     * Interrupts still occur at exactly the same times.
+     *
+     * <p>
+     * Does nothing unless <tt>Interrupt.tickless</tt> is set. The skipped
+     * time is counted in <tt>Stats.idleTicks</tt> rather than as kernel
+     * ticks.
+     */
+    public void idle() {
+	if (!tickless || pending.isEmpty())
+	    return;
+
+	Stats stats = privilege.stats;
+	long untilDue = pending.firstTime() - stats.totalTicks;
+
+	// the kernel tick that makes the interrupt due is still charged
+	long skipped = (untilDue - 1) / Stats.KernelTick * Stats.KernelTick;
+	if (skipped > 0) {
+	    stats.totalTicks += skipped;
+	    stats.idleTicks += skipped;
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt)) {
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+	}
 
-	pending.add(toOccur);
+	pending.add(time, numPendingInterruptsCreated++, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +184,28 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long quietUserTicks() {
+	// with interrupt debugging on, every tick is reported
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	long untilDue = pending.firstTime() - privilege.stats.totalTicks;
+	return (untilDue - 1) / Stats.UserTick;
+    }
+
+    private void tickUser(long numTicks) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += numTicks * Stats.UserTick;
+	stats.totalTicks += numTicks * Stats.UserTick;
+
+	Lib.assertTrue(pending.isEmpty() ||
+		       pending.firstTime() > stats.totalTicks);
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -164,72 +217,333 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.firstHandler();
+	    pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Write the pending interrupts to a checkpoint, as the type of each and
+     * the number of ticks until it is due, in the order they will occur.
+     */
+    void saveState(DataOutputStream out) throws IOException {
+	long time = privilege.stats.totalTicks;
+
+	out.writeInt(pending.size);
+	for (PendingQueue copy = pending.copy(); !copy.isEmpty();
+	     copy.removeFirst()) {
+	    out.writeUTF(copy.firstType());
+	    out.writeLong(copy.firstTime() - time);
+	}
+    }
+
+    /**
+     * Move the pending interrupts to the times recorded in a checkpoint. The
+     * handlers are Java objects, so they cannot be saved; instead each
+     * interrupt the devices have scheduled since this run started takes the
+     * time of the next unused saved interrupt of the same type. Any other
+     * interrupt stays the same number of ticks from the current time as it
+     * was before the statistics were restored.
+     *
+     * @param	previousTime	the time before the checkpoint was restored.
+     */
+    void restoreState(DataInputStream in, long previousTime)
+	throws IOException {
+	int numSaved = in.readInt();
+	String[] types = new String[numSaved];
+	long[] delays = new long[numSaved];
+	for (int i=0; i<numSaved; i++) {
+	    types[i] = in.readUTF();
+	    delays[i] = in.readLong();
+	}
+
+	long time = privilege.stats.totalTicks;
+	PendingQueue old = pending;
+	pending = new PendingQueue(initialCapacity);
+
+	for (; !old.isEmpty(); old.removeFirst()) {
+	    String type = old.firstType();
+	    long delay = old.firstTime() - previousTime;
+
+	    for (int i=0; i<numSaved; i++) {
+		if (types[i] != null && types[i].equals(type)) {
+		    delay = delays[i];
+		    types[i] = null;
+		    break;
+		}
+	    }
+
+	    pending.add(time + delay, numPendingInterruptsCreated++, type,
+			old.firstHandler());
+	}
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	for (PendingQueue copy = pending.copy(); !copy.isEmpty();
+	     copy.removeFirst()) {
+	    System.out.println("  " + copy.firstType() +
+			       ", scheduled at " + copy.firstTime());
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Test the pending interrupt queue, and, if
+     * <tt>Interrupt.benchmarkEvents</tt> is set, measure how quickly it
+     * schedules and invokes that many interrupts and how much garbage it
+     * creates doing so.
+     */
+    public static void selfTest() {
+	PendingQueue queue = new PendingQueue(1);
+	long[] times = { 5, 3, 9, 3, 1, 7, 5 };
+
+	for (int i=0; i<times.length; i++)
+	    queue.add(times[i], i, "" + i, null);
+
+	int[] expected = { 4, 1, 3, 0, 6, 5, 2 };
+	for (int i=0; i<expected.length; i++) {
+	    Lib.assertTrue(queue.firstType().equals("" + expected[i]));
+	    queue.removeFirst();
+	}
+	Lib.assertTrue(queue.isEmpty());
+
+	final int numEvents = Config.getInteger("Interrupt.benchmarkEvents", 0);
+	if (numEvents > 0) {
+	    Machine.interrupt().privilege.doPrivileged(new Runnable() {
+		    public void run() { benchmark(numEvents); }
+		});
+	}
+    }
+
+    /**
+     * Replay the interrupt pattern of the standard devices: a timer every
+     * 500 ticks followed one tick later by the autograder interrupt, and
+     * console reads and writes every 100 ticks.
+     */
+    private static void benchmark(int numEvents) {
+	PendingQueue queue = new PendingQueue(initialCapacity);
+	long[] intervals = { Stats.TimerTicks, 1, Stats.ConsoleTime,
+			     Stats.ConsoleTime };
+	String[] types = { "timer", "autograder", "console read",
+			   "console write" };
+	Runnable[] handlers = new Runnable[types.length];
+	long id = 0;
+
+	for (int i=0; i<intervals.length; i++) {
+	    handlers[i] = new Runnable() {
+		    public void run() {
+		    }
+		};
+	    queue.add(intervals[i], id++, types[i], handlers[i]);
+	}
+
+	// per-thread allocation counts are only available on some JVMs
+	com.sun.management.ThreadMXBean threads = null;
+	if (ManagementFactory.getThreadMXBean()
+	    instanceof com.sun.management.ThreadMXBean) {
+	    threads = (com.sun.management.ThreadMXBean)
+		ManagementFactory.getThreadMXBean();
+	}
+	long thread = Thread.currentThread().getId();
+
+	long startCollections = numCollections();
+	long startBytes =
+	    (threads != null) ? threads.getThreadAllocatedBytes(thread) : 0;
+	long startTime = System.nanoTime();
+	
+	for (int i=0; i<numEvents; i++) {
+	    long time = queue.firstTime();
+	    Runnable handler = queue.firstHandler();
+	    queue.removeFirst();
+
+	    // the timer jitters, and schedules the autograder interrupt
+	    if (handler == handlers[0]) {
+		queue.add(time + intervals[0] + (i%51) - 25, id++, types[0],
+			  handlers[0]);
+		queue.add(time + intervals[1], id++, types[1], handlers[1]);
+	    }
+	    else {
+		for (int j=2; j<handlers.length; j++) {
+		    if (handler == handlers[j])
+			queue.add(time + intervals[j], id++, types[j], handler);
+		}
+	    }
+	}
+
+	long nanos = System.nanoTime() - startTime;
+	long collections = numCollections() - startCollections;
+
+	String allocated = "";
+	if (threads != null) {
+	    long bytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+	    allocated = ((double) bytes / numEvents) +
+		" bytes allocated per interrupt, ";
+	}
+
+	System.out.println("Interrupt benchmark: " + numEvents +
+			   " interrupts in " + (nanos/1000000) + " ms, " +
+			   allocated + collections + " collections");
+    }
+
+    private static long numCollections() {
+	long collections = 0;
+	for (GarbageCollectorMXBean gc :
+		 ManagementFactory.getGarbageCollectorMXBeans())
+	    collections += Math.max(gc.getCollectionCount(), 0);
+	return collections;
+    }
+
+    /**
+     * A binary min-heap of pending interrupts, ordered by the time they are
+     * due and then by the order they were scheduled. Each entry is a time, a
+     * sequence number, a type and a handler, kept in parallel arrays, so
+     * adding and removing entries does not allocate. A handler is only
+     * referenced while it is pending.
+     */
+    private static class PendingQueue {
+	PendingQueue(int capacity) {
+	    times = new long[capacity];
+	    ids = new long[capacity];
+	    types = new String[capacity];
+	    handlers = new Runnable[capacity];
+	}
+
+	boolean isEmpty() {
+	    return size == 0;
+	}
+
+	long firstTime() {
+	    return times[0];
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	String firstType() {
+	    return types[0];
+	}
+
+	Runnable firstHandler() {
+	    return handlers[0];
+	}
+
+	void add(long time, long id, String type, Runnable handler) {
+	    if (size == times.length)
+		grow();
+
+	    int i = size++;
+	    
+	    // sift up
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(time, id, times[parent], ids[parent]))
+		    break;
+
+		set(i, times[parent], ids[parent], types[parent],
+		    handlers[parent]);
+		i = parent;
+	    }
+	    
+	    set(i, time, id, type, handler);
+	}
+
+	void removeFirst() {
+	    Lib.assertTrue(size > 0);
+
+	    size--;
+	    long time = times[size], id = ids[size];
+	    String type = types[size];
+	    Runnable handler = handlers[size];
+
+	    // the vacated slot must not keep its handler alive
+	    types[size] = null;
+	    handlers[size] = null;
+
+	    // sift the last entry down from the root
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size &&
+		    before(times[child+1], ids[child+1],
+			   times[child], ids[child]))
+		    child++;
+
+		if (!before(times[child], ids[child], time, id))
+		    break;
+
+		set(i, times[child], ids[child], types[child], handlers[child]);
+		i = child;
+	    }
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	    if (size > 0)
+		set(i, time, id, type, handler);
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	PendingQueue copy() {
+	    PendingQueue copy = new PendingQueue(Math.max(size, 1));
+	    System.arraycopy(times, 0, copy.times, 0, size);
+	    System.arraycopy(ids, 0, copy.ids, 0, size);
+	    System.arraycopy(types, 0, copy.types, 0, size);
+	    System.arraycopy(handlers, 0, copy.handlers, 0, size);
+	    copy.size = size;
+	    return copy;
+	}
+
+	private static boolean before(long time1, long id1,
+				      long time2, long id2) {
+	    return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
+
+	private void set(int i, long time, long id, String type,
+			 Runnable handler) {
+	    times[i] = time;
+	    ids[i] = id;
+	    types[i] = type;
+	    handlers[i] = handler;
+	}
+
+	private void grow() {
+	    long[] newTimes = new long[times.length*2];
+	    long[] newIds = new long[times.length*2];
+	    String[] newTypes = new String[times.length*2];
+	    Runnable[] newHandlers = new Runnable[times.length*2];
+	    System.arraycopy(times, 0, newTimes, 0, size);
+	    System.arraycopy(ids, 0, newIds, 0, size);
+	    System.arraycopy(types, 0, newTypes, 0, size);
+	    System.arraycopy(handlers, 0, newHandlers, 0, size);
+	    times = newTimes;
+	    ids = newIds;
+	    types = newTypes;
+	    handlers = newHandlers;
+	}
 
-	private long id;
+	private long[] times, ids;
+	private String[] types;
+	private Runnable[] handlers;
+	private int size = 0;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +551,11 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private PendingQueue pending;
+    /** <tt>true</tt> if <tt>idle()</tt> skips to the next interrupt. */
+    private boolean tickless;
+
+    private static final int initialCapacity = 16;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +567,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long quietUserTicks() {
+	    return Interrupt.this.quietUserTicks();
+	}
+
+	public void tickUser(long numTicks) {
+	    Interrupt.this.tickUser(numTicks);
+	}
     }
 }
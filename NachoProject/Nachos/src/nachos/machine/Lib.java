@@ -32,7 +32,7 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static Generator random = null;
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,7 +41,7 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 	assertTrue(random == null);
-	random = new Random(randomSeed);
+	random = new Generator(randomSeed);
     }
     
     /**
@@ -66,6 +66,50 @@ public final class Lib {
 	return random.nextDouble();
     }
 
+    /**
+     * Return the state of the random number generator, so that a checkpoint
+     * can save it.
+     *
+     * @return	the state of the random number generator.
+     */
+    static long getRandomState() {
+	return random.state;
+    }
+
+    /**
+     * Put the random number generator back in a state saved by a
+     * checkpoint.
+     *
+     * @param	state	the state returned by <tt>getRandomState()</tt>.
+     */
+    static void setRandomState(long state) {
+	random.state = state;
+    }
+
+    /**
+     * The random number generator. It produces exactly the sequence
+     * <tt>java.util.Random</tt> specifies for a given seed, but keeps its
+     * state where <tt>Checkpoint</tt> can read it.
+     */
+    private static class Generator extends Random {
+	Generator(long seed) {
+	    state = (seed ^ multiplier) & mask;
+	}
+
+	protected int next(int bits) {
+	    state = (state * multiplier + addend) & mask;
+	    return (int) (state >>> (48 - bits));
+	}
+
+	long state;
+
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+
+	private static final long serialVersionUID = 1L;
+    }
+
     /**
      * Asserts that <i>expression</i> is <tt>true</tt>. If not, then Nachos
      * exits with an error message.
@@ -467,7 +511,7 @@ public final class Lib {
      */
     public static Class tryLoadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    return null;
@@ -482,7 +526,7 @@ public final class Lib {
      */
     public static Class loadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    Machine.terminate(e);
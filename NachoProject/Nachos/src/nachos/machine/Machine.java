@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -49,10 +50,24 @@ public final class Machine {
 
 	privilege.machine = new MachinePrivilege();
 
+	if (eventLog != null) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { eventLog.flush(); }
+		});
+	}
+
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
 
-	securityManager.enable();
+	// a hosted machine shares the JVM with others, so it cannot install
+	// a security manager of its own, and must not run a grader that relies
+	// on one to sandbox the kernel
+	if (MachineContext.current() == null)
+	    securityManager.enable();
+	else
+	    Lib.assertTrue(autoGraderClassName.equals(defaultAutoGraderClassName),
+			   "a hosted machine has no security manager, and cannot "
+			   + "run autograder " + autoGraderClassName);
 	createDevices();
 	checkUserClasses();
 
@@ -92,11 +107,20 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, and the user program profile if one was collected, and
+     * terminate Nachos. With <tt>Machine.printCounters</tt> set, every
+     * counter is also printed on one line, for tools such as
+     * <tt>ParameterSweep</tt>.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
+	if (processor != null)
+	    processor.extrapolateSamples();
 	stats.print();
+	if (Config.getBoolean("Machine.printCounters", false))
+	    System.out.println("Counters: " + stats);
+	if (processor != null)
+	    processor.printProfile();
 	terminate();
     }
 
@@ -123,7 +147,7 @@ public final class Machine {
 		}
 		else if (arg.equals("-h")) {
 		    System.out.print(help);
-		    System.exit(1);
+		    MachineContext.exit(1);
 		}
 		else if (arg.equals("-m")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
@@ -147,9 +171,33 @@ public final class Machine {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    shellProgramName = args[i++];		    
 		}		    
+		else if (arg.equals("-record")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    recordFileName = args[i++];
+		}
+		else if (arg.equals("-replay")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    replayFileName = args[i++];
+		}
+		else if (arg.equals("-saveprocess")) {
+		    Lib.assertTrue(i+1 < args.length, "switch without argument");
+		    try {
+			checkpointTime = Long.parseLong(args[i++]);
+		    }
+		    catch (NumberFormatException e) {
+			Lib.assertNotReached("bad value for -saveprocess switch");
+		    }
+		    Lib.assertTrue(checkpointTime > 0,
+				   "bad value for -saveprocess switch");
+		    checkpointFileName = args[i++];
+		}
+		else if (arg.equals("-resumeprocess")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    restoreFileName = args[i++];
+		}
 		else if (arg.equals("-z")) {
 		    System.out.print(copyright);
-		    System.exit(1);
+		    MachineContext.exit(1);
 		}
 		// these switches are reserved for the autograder
 		else if (arg.equals("-[]")) {
@@ -163,6 +211,28 @@ public final class Machine {
 	    }
 	}
 
+	try {
+	    // a replay must use the seed of the run it recorded
+	    if (replayFileName != null) {
+		eventLog = EventLog.replay(replayFileName, stats);
+		randomSeed = eventLog.getRandomSeed();
+	    }
+	    else if (recordFileName != null) {
+		eventLog = EventLog.record(recordFileName, randomSeed, stats);
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to open event log: " + e);
+	}
+
+	try {
+	    if (restoreFileName != null)
+		restorePoint = Checkpoint.load(restoreFileName);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to read checkpoint: " + e);
+	}
+
 	Lib.seedRandom(randomSeed);
     }
 
@@ -177,6 +247,19 @@ public final class Machine {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
 	    processor = new Processor(privilege, numPhysPages);
+
+	    if (restorePoint != null)
+		processor.restoreFrom(restorePoint);
+
+	    if (checkpointFileName != null) {
+		processor.checkCheckpointable();
+		privilege.interrupt.schedule(checkpointTime, "checkpoint",
+					     new Runnable() {
+			public void run() {
+			    processor.requestCheckpoint(checkpointFileName);
+			}
+		    });
+	    }
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -344,6 +427,13 @@ public final class Machine {
      */
     public static NetworkLink networkLink() { return networkLink; }
     
+    /**
+     * Return the log of external events being recorded or replayed.
+     *
+     * @return	the event log, or <tt>null</tt> if there is none.
+     */
+    static EventLog eventLog() { return eventLog; }
+
     /**
      * Return the autograder.
      *
@@ -359,8 +449,11 @@ public final class Machine {
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
+    private static EventLog eventLog = null;
 
-    private static String autoGraderClassName = "nachos.ag.AutoGrader";
+    private static final String defaultAutoGraderClassName =
+	"nachos.ag.AutoGrader";
+    private static String autoGraderClassName = defaultAutoGraderClassName;
 
     /**
      * Return the name of the shell program that a user-programming kernel
@@ -412,6 +505,10 @@ public final class Machine {
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
+    private static String recordFileName = null, replayFileName = null;
+    private static long checkpointTime = 0;
+    private static String checkpointFileName = null, restoreFileName = null;
+    private static Checkpoint restorePoint = null;
 
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
@@ -438,6 +535,24 @@ public final class Machine {
 	"\t\tinstead of the value of the configuration variable\n" +
 	"\t\tKernel.shellProgram\n" +
 	"\n" +
+	"\t-record <file>\n" +
+	"\t\tRecord console input, network packets and timer interrupts\n" +
+	"\t\tto a file, so that the run can be replayed.\n" +
+	"\n" +
+	"\t-replay <file>\n" +
+	"\t\tReplay a file written by -record, using its random seed.\n" +
+	"\n" +
+	"\t-saveprocess <tick> <file>\n" +
+	"\t\tSave the registers, page table and memory of a single user\n" +
+	"\t\tprocess, the pending interrupts and stats to a file at the\n" +
+	"\t\tfirst user instruction after the given tick. Not for kernels\n" +
+	"\t\twith a TLB, more than one process, or the cache model.\n" +
+	"\n" +
+	"\t-resumeprocess <file>\n" +
+	"\t\tResume a process saved by -saveprocess when the first user\n" +
+	"\t\tprogram starts. The kernel still boots as usual. Use the same\n" +
+	"\t\tprogram and configuration.\n" +
+	"\n" +
 	"\t-z\n" +
 	"\t\tprint the copyright message\n" +
 	"\n" +
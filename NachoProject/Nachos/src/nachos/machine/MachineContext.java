@@ -0,0 +1,436 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A Nachos simulation hosted in a JVM shared with other simulations, so that
+ * many can run at once without paying for a JVM each.
+ *
+ * <p>
+ * The machine, its devices, the kernel and everything else under
+ * <tt>nachos</tt> keep their state in static fields. Rather than thread an
+ * instance through all of them, each context loads its own copy of every
+ * Nachos class with a private class loader, so the static fields of one
+ * simulation are invisible to the others. This class is the only one shared
+ * between them. A simulation given the same arguments, including the same
+ * <tt>-s</tt> seed, behaves the same as it would on its own.
+ *
+ * <p>
+ * The simulation's threads run in a thread group of their own, and
+ * <tt>System.out</tt>, <tt>System.err</tt> and <tt>System.in</tt> are routed
+ * by thread group, so that each context collects its own output and reads
+ * its own input. When the simulation exits, its threads are stopped, rather
+ * than the JVM.
+ *
+ * <p>
+ * A hosted machine cannot install the Nachos security manager, since there
+ * is only one per JVM, so it should only run trusted kernels, and it refuses
+ * to run any autograder other than the default. The network link and the
+ * elevator GUI use host resources that are not isolated, and are not
+ * supported.
+ */
+public final class MachineContext implements Callable<Integer> {
+    /**
+     * Allocate a new context, to run Nachos with the specified command line
+     * arguments and no console input.
+     *
+     * @param	args	the command line arguments to pass to Nachos.
+     */
+    public MachineContext(String[] args) {
+	this(args, new byte[0]);
+    }
+
+    /**
+     * Allocate a new context, to run Nachos with the specified command line
+     * arguments.
+     *
+     * @param	args	the command line arguments to pass to Nachos.
+     * @param	input	the bytes the console will read.
+     */
+    public MachineContext(String[] args, byte[] input) {
+	this.args = args.clone();
+	this.input = new ByteArrayInputStream(input);
+    }
+
+    /**
+     * Run the simulation to completion in a private class loader and thread
+     * group.
+     *
+     * @return	the status Nachos exited with.
+     * @exception	InterruptedException	if the calling thread is
+     *						interrupted while waiting.
+     */
+    public Integer call() throws InterruptedException {
+	synchronized (this) {
+	    if (group != null)
+		throw new IllegalStateException("context already run");
+	    group = new ContextGroup(this);
+	}
+
+	routeStreams();
+
+	URL location =
+	    MachineContext.class.getProtectionDomain().getCodeSource()
+	    .getLocation();
+	final ClassLoader loader = new Loader(new URL[] { location },
+					      MachineContext.class
+					      .getClassLoader());
+
+	Thread thread = new Thread(group, new Runnable() {
+		public void run() { runMachine(loader); }
+	    }, group.getName());
+
+	// a network link thread may never end, and must not keep the JVM up
+	thread.setDaemon(true);
+
+	long startTime = System.nanoTime();
+	thread.start();
+	thread.join();
+	wallTime = System.nanoTime() - startTime;
+
+	return exitStatus;
+    }
+
+    /**
+     * Invoke <tt>Machine.main()</tt> from the private class loader, and wait
+     * for the simulation to exit.
+     */
+    private void runMachine(ClassLoader loader) {
+	try {
+	    loader.loadClass("nachos.machine.Machine")
+		.getMethod("main", String[].class)
+		.invoke(null, (Object) args);
+	}
+	catch (InvocationTargetException e) {
+	    if (!(e.getCause() instanceof ThreadDeath) || !stopping) {
+		e.getCause().printStackTrace();
+		finish(1);
+	    }
+	}
+	catch (ReflectiveOperationException e) {
+	    e.printStackTrace();
+	    finish(1);
+	}
+
+	// the first Nachos thread can finish before the others, so main()
+	// returning does not mean the simulation has exited
+	synchronized (this) {
+	    while (!stopping) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		}
+	    }
+	}
+    }
+
+    /**
+     * Return the command line arguments this context passes to Nachos.
+     *
+     * @return	the command line arguments.
+     */
+    public String[] getArgs() {
+	return args.clone();
+    }
+
+    /**
+     * Return everything the simulation has written to <tt>System.out</tt> and
+     * <tt>System.err</tt>.
+     *
+     * @return	the output of the simulation.
+     */
+    public String getOutput() {
+	return output.toString();
+    }
+
+    /**
+     * Return the status Nachos exited with.
+     *
+     * @return	the exit status, or <tt>-1</tt> if the simulation has not
+     *		exited.
+     */
+    public int getExitStatus() {
+	return exitStatus;
+    }
+
+    /**
+     * Return how long the simulation took to run.
+     *
+     * @return	the elapsed real time, in nanoseconds.
+     */
+    public long getWallTime() {
+	return wallTime;
+    }
+
+    /**
+     * Return the context hosting the simulation the current thread belongs
+     * to.
+     *
+     * @return	the current context, or <tt>null</tt> if Nachos is running on
+     *		its own.
+     */
+    public static MachineContext current() {
+	// every thread of a simulation is created directly in its group, and
+	// asking for a parent group is not allowed under the security manager
+	ThreadGroup group = Thread.currentThread().getThreadGroup();
+
+	if (group instanceof ContextGroup)
+	    return ((ContextGroup) group).context;
+	else
+	    return null;
+    }
+
+    /**
+     * Test whether the simulation the current thread belongs to is hosted
+     * and has exited, so that its threads should end.
+     *
+     * @return	<tt>true</tt> if the current thread should end.
+     */
+    public static boolean isStopping() {
+	MachineContext context = current();
+
+	return (context != null && context.stopping);
+    }
+
+    /**
+     * Terminate the simulation the current thread belongs to. On its own,
+     * Nachos exits the JVM. A hosted simulation instead records the status,
+     * interrupts its other threads so they can end, and ends the current
+     * thread by throwing <tt>ThreadDeath</tt>.
+     *
+     * @param	status	the exit status.
+     */
+    public static void exit(int status) {
+	MachineContext context = current();
+	if (context == null)
+	    System.exit(status);
+
+	context.finish(status);
+
+	Thread[] threads = new Thread[context.group.activeCount() + 1];
+	int numThreads = context.group.enumerate(threads);
+	for (int i=0; i<numThreads; i++) {
+	    if (threads[i] != Thread.currentThread())
+		threads[i].interrupt();
+	}
+
+	throw new ThreadDeath();
+    }
+
+    private synchronized void finish(int status) {
+	if (!stopping) {
+	    exitStatus = status;
+	    stopping = true;
+	    notifyAll();
+	}
+    }
+
+    /**
+     * Replace the standard streams with ones that pass data to and from the
+     * context of the current thread, or the original streams for threads
+     * that belong to no context.
+     */
+    private static synchronized void routeStreams() {
+	if (hostOut != null)
+	    return;
+
+	hostOut = System.out;
+	hostErr = System.err;
+	hostIn = System.in;
+
+	System.setOut(new PrintStream(new RoutedOutput(hostOut), true));
+	System.setErr(new PrintStream(new RoutedOutput(hostErr), true));
+	System.setIn(new RoutedInput());
+    }
+
+    /**
+     * Run several simulations at once and print their output in order. Each
+     * argument holds the command line of one simulation, with its switches
+     * separated by spaces, so that
+     *
+     * <pre>
+     * java nachos.machine.MachineContext -j 4 "-x sort.coff" "-x matmult.coff"
+     * </pre>
+     *
+     * <p>
+     * runs two simulations on a pool of up to four host threads. The JVM
+     * exits with the largest exit status of any simulation.
+     *
+     * @param	args	<tt>-j</tt> and the number of host threads, and then
+     *			one command line per simulation.
+     */
+    public static void main(String[] args) throws InterruptedException {
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	ArrayList<MachineContext> contexts = new ArrayList<MachineContext>();
+
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-j") && i+1 < args.length)
+		numThreads = Integer.parseInt(args[++i]);
+	    else
+		contexts.add(new MachineContext(args[i].trim().split("\\s+")));
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+	ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+	for (MachineContext context : contexts)
+	    results.add(pool.submit(context));
+
+	int worstStatus = 0;
+	for (int i=0; i<contexts.size(); i++) {
+	    MachineContext context = contexts.get(i);
+	    int status;
+	    try {
+		status = results.get(i).get();
+	    }
+	    catch (ExecutionException e) {
+		e.getCause().printStackTrace();
+		status = 1;
+	    }
+
+	    System.out.println("=== " + String.join(" ", context.args)
+			       + ": exit status " + status + ", "
+			       + context.wallTime / 1000000 + " ms ===");
+	    System.out.print(context.getOutput());
+	    System.out.println();
+
+	    worstStatus = Math.max(worstStatus, status);
+	}
+
+	pool.shutdown();
+	System.exit(worstStatus);
+    }
+
+    /**
+     * The thread group of a hosted simulation, through which its threads
+     * find their context.
+     */
+    private static class ContextGroup extends ThreadGroup {
+	ContextGroup(MachineContext context) {
+	    super("nachos-" + nextID());
+	    this.context = context;
+	}
+
+	final MachineContext context;
+    }
+
+    private static synchronized int nextID() {
+	return numContexts++;
+    }
+
+    /**
+     * Loads a private copy of every class found where Nachos was loaded
+     * from, including any kernels and graders built alongside it, except
+     * <tt>MachineContext</tt>. Other classes are left to its parent.
+     */
+    private static class Loader extends URLClassLoader {
+	Loader(URL[] urls, ClassLoader parent) {
+	    super(urls, parent);
+	}
+
+	protected Class<?> loadClass(String name, boolean resolve)
+	    throws ClassNotFoundException {
+	    String shared = MachineContext.class.getName();
+
+	    if (name.startsWith("java.") || name.equals(shared) ||
+		name.startsWith(shared + "$"))
+		return super.loadClass(name, resolve);
+
+	    synchronized (getClassLoadingLock(name)) {
+		Class<?> cls = findLoadedClass(name);
+		if (cls == null) {
+		    try {
+			cls = findClass(name);
+		    }
+		    catch (ClassNotFoundException e) {
+			return super.loadClass(name, resolve);
+		    }
+		}
+		if (resolve)
+		    resolveClass(cls);
+		return cls;
+	    }
+	}
+    }
+
+    private static class RoutedOutput extends OutputStream {
+	RoutedOutput(OutputStream host) {
+	    this.host = host;
+	}
+
+	public void write(int b) throws IOException {
+	    MachineContext context = current();
+	    if (context == null)
+		host.write(b);
+	    else
+		context.output.write(b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    MachineContext context = current();
+	    if (context == null)
+		host.write(b, off, len);
+	    else
+		context.output.write(b, off, len);
+	}
+
+	public void flush() throws IOException {
+	    if (current() == null)
+		host.flush();
+	}
+
+	private OutputStream host;
+    }
+
+    private static class RoutedInput extends InputStream {
+	public int read() throws IOException {
+	    MachineContext context = current();
+	    return (context == null) ? hostIn.read() : context.input.read();
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    MachineContext context = current();
+	    if (context == null)
+		return hostIn.read(b, off, len);
+	    else
+		return context.input.read(b, off, len);
+	}
+
+	public int available() throws IOException {
+	    MachineContext context = current();
+	    if (context == null)
+		return hostIn.available();
+	    else
+		return context.input.available();
+	}
+    }
+
+    private String[] args;
+    private ByteArrayInputStream input;
+    private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private ContextGroup group = null;
+    private volatile boolean stopping = false;
+    private int exitStatus = -1;
+    private long wallTime = 0;
+
+    private static int numContexts = 0;
+    private static PrintStream hostOut = null, hostErr = null;
+    private static InputStream hostIn = null;
+}
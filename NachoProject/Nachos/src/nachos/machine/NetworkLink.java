@@ -89,16 +89,27 @@ public class NetworkLink {
 
 	socket = null;
 
-	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
-	    try {
-		socket = new DatagramSocket(portBase + linkAddress, localHost);
-		break;
-	    }
-	    catch (SocketException e) {
+	// a replay takes its address and packets from the recording, and
+	// neither sends nor receives anything
+	EventLog log = Machine.eventLog();
+	if (log != null && log.isReplaying()) {
+	    linkAddress = (byte) log.replayLinkAddress();
+	    replaying = true;
+	}
+	else {
+	    for (linkAddress=0; linkAddress<Packet.linkAddressLimit;
+		 linkAddress++) {
+		try {
+		    socket = new DatagramSocket(portBase + linkAddress,
+						localHost);
+		    break;
+		}
+		catch (SocketException e) {
+		}
 	    }
 	}
 
-	if (socket == null) {
+	if (socket == null && !replaying) {
 	    System.out.println("");
 	    System.out.println("Unable to acquire a link address!");
 	    Lib.assertNotReached();
@@ -106,6 +117,9 @@ public class NetworkLink {
 
 	System.out.print("(" + linkAddress + ")");
 
+	if (log != null)
+	    log.recordLinkAddress(linkAddress);
+
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
 	    };
@@ -116,11 +130,13 @@ public class NetworkLink {
 	
 	scheduleReceiveInterrupt();
 
-	Thread receiveThread = new Thread(new Runnable() {
-		public void run() { receiveLoop(); }
-	    });
+	if (!replaying) {
+	    Thread receiveThread = new Thread(new Runnable() {
+		    public void run() { receiveLoop(); }
+		});
 
-	receiveThread.start();
+	    receiveThread.start();
+	}
     }
 
     /**
@@ -163,6 +179,12 @@ public class NetworkLink {
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
+	EventLog log = Machine.eventLog();
+	if (replaying)
+	    incomingBytes = log.replayPacket();
+	else if (log != null && incomingBytes != null)
+	    log.recordPacket(incomingBytes);
+
 	if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
@@ -266,6 +288,11 @@ public class NetworkLink {
     private void sendPacket() {
 	Packet p = outgoingPacket;
 	outgoingPacket = null;
+
+	if (replaying) {
+	    privilege.stats.numPacketsSent++;
+	    return;
+	}
 	
 	try {
 	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
@@ -320,6 +347,7 @@ public class NetworkLink {
 
     private byte linkAddress;
     private double reliability;
+    private boolean replaying = false;
 
     private byte[] incomingBytes = null;
     private Packet incomingPacket = null;
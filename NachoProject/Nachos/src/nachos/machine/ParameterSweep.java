@@ -0,0 +1,451 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs Nachos over every combination of a set of configuration overrides and
+ * a set of shell programs or graders, and tabulates the statistics of each
+ * run. For example,
+ *
+ * <pre>
+ * java nachos.machine.ParameterSweep -[] nachos.conf -x sort.coff \
+ *     -x matmult.coff Processor.numPhysPages=16,32,64
+ * </pre>
+ *
+ * <p>
+ * runs six cells. Each cell runs in a separate worker JVM, with a temporary
+ * configuration file that is the base file with the cell's overrides
+ * applied, and the cells run in parallel on every host core. The result is
+ * a table, in CSV or JSON, with one row per cell: its program or grader, its
+ * overrides, its exit status, the host wall time it took, and every
+ * <tt>Stats</tt> counter, including the simulated ticks.
+ *
+ * <p>
+ * The switches are:
+ *
+ * <dl>
+ * <dt><tt>-[] <i>file</i></tt><dd>the base configuration file, by default
+ * <tt>nachos.conf</tt>.
+ * <dt><tt>-x <i>program</i></tt><dd>a shell program to run, as with
+ * Nachos' own <tt>-x</tt>. May be repeated.
+ * <dt><tt>-- <i>class</i></tt><dd>a grader to run, as with Nachos' own
+ * <tt>--</tt>. May be repeated.
+ * <dt><tt>-a <i>arguments</i></tt><dd>other arguments to pass to every
+ * run, separated by spaces, such as <tt>"-s 7"</tt>.
+ * <dt><tt>-j <i>workers</i></tt><dd>the number of runs at a time, by
+ * default the number of host cores.
+ * <dt><tt>-o <i>file</i></tt><dd>write the table to a file instead of
+ * standard output.
+ * <dt><tt>-json</tt><dd>write JSON instead of CSV.
+ * <dt><tt><i>key</i>=<i>value</i>,<i>value</i>...</tt><dd>a dimension of
+ * the matrix: every value to try for a configuration key.
+ * </dl>
+ */
+public final class ParameterSweep {
+    /**
+     * Run a sweep.
+     *
+     * @param	args	the switches and dimensions of the sweep.
+     */
+    public static void main(String[] args) throws Exception {
+	ParameterSweep sweep = new ParameterSweep();
+
+	for (int i=0; i<args.length; i++) {
+	    String arg = args[i];
+	    boolean hasValue = (i+1 < args.length);
+
+	    if (arg.equals("-[]") && hasValue)
+		sweep.configFileName = args[++i];
+	    else if (arg.equals("-x") && hasValue)
+		sweep.targets.add(new String[] { "-x", args[++i] });
+	    else if (arg.equals("--") && hasValue)
+		sweep.targets.add(new String[] { "--", args[++i] });
+	    else if (arg.equals("-a") && hasValue) {
+		String extra = args[++i].trim();
+		sweep.extraArgs =
+		    extra.isEmpty() ? new String[0] : extra.split("\\s+");
+	    }
+	    else if (arg.equals("-j") && hasValue)
+		sweep.numWorkers = Integer.parseInt(args[++i]);
+	    else if (arg.equals("-o") && hasValue)
+		sweep.outputFileName = args[++i];
+	    else if (arg.equals("-json"))
+		sweep.json = true;
+	    else if (arg.indexOf('=') > 0) {
+		int equals = arg.indexOf('=');
+		sweep.keys.add(arg.substring(0, equals));
+		sweep.values.add(arg.substring(equals+1).split(","));
+	    }
+	    else {
+		System.err.println("ParameterSweep: bad argument " + arg);
+		System.exit(1);
+	    }
+	}
+
+	// with no programs or graders, run whatever the configuration says
+	if (sweep.targets.isEmpty())
+	    sweep.targets.add(new String[0]);
+
+	System.exit(sweep.run());
+    }
+
+    /**
+     * Run every cell, and write the table of results.
+     *
+     * @return	<tt>0</tt> if every cell exited normally, or <tt>1</tt>
+     *		otherwise.
+     */
+    private int run() throws IOException, InterruptedException {
+	List<String> baseConfig = readLines(configFileName);
+
+	ArrayList<Cell> cells = new ArrayList<Cell>();
+	int numCombinations = 1;
+	for (String[] choices : values)
+	    numCombinations *= choices.length;
+
+	for (String[] target : targets) {
+	    for (int c=0; c<numCombinations; c++) {
+		// the last key varies fastest
+		int[] choice = new int[keys.size()];
+		int index = c;
+		for (int k=keys.size()-1; k>=0; k--) {
+		    choice[k] = index % values.get(k).length;
+		    index /= values.get(k).length;
+		}
+
+		LinkedHashMap<String, String> overrides =
+		    new LinkedHashMap<String, String>();
+		for (int k=0; k<keys.size(); k++)
+		    overrides.put(keys.get(k), values.get(k)[choice[k]]);
+
+		cells.add(new Cell(cells.size(), target, overrides,
+				   baseConfig));
+	    }
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+	ArrayList<Future<Cell>> results = new ArrayList<Future<Cell>>();
+	for (Cell cell : cells)
+	    results.add(pool.submit(cell));
+
+	int status = 0;
+	for (int i=0; i<cells.size(); i++) {
+	    Cell cell = cells.get(i);
+	    try {
+		results.get(i).get();
+	    }
+	    catch (ExecutionException e) {
+		cell.output = e.getCause().toString();
+	    }
+
+	    if (cell.exitStatus != 0 || cell.counters.isEmpty()) {
+		System.err.println("cell " + cell.id + " (" + cell.describe()
+				   + ") exited with status "
+				   + cell.exitStatus + ":");
+		System.err.println(cell.output);
+		status = 1;
+	    }
+	}
+	pool.shutdown();
+
+	Writer writer;
+	if (outputFileName != null)
+	    writer = new FileWriter(outputFileName);
+	else
+	    writer = new PrintWriter(System.out);
+
+	if (json)
+	    writeJSON(writer, cells);
+	else
+	    writeCSV(writer, cells);
+	writer.flush();
+	if (outputFileName != null)
+	    writer.close();
+
+	return status;
+    }
+
+    /**
+     * Return the union of the counter names of all cells, in the order they
+     * were first seen.
+     */
+    private static List<String> counterNames(List<Cell> cells) {
+	ArrayList<String> names = new ArrayList<String>();
+	for (Cell cell : cells) {
+	    for (String name : cell.counters.keySet()) {
+		if (!names.contains(name))
+		    names.add(name);
+	    }
+	}
+	return names;
+    }
+
+    private void writeCSV(Writer writer, List<Cell> cells)
+	throws IOException {
+	List<String> counters = counterNames(cells);
+
+	StringBuffer line = new StringBuffer("cell,target");
+	for (String key : keys)
+	    line.append("," + csvField(key));
+	line.append(",exitStatus,wallMillis");
+	for (String name : counters)
+	    line.append("," + name);
+	writer.write(line + "\n");
+
+	for (Cell cell : cells) {
+	    line = new StringBuffer(cell.id + "," + csvField(cell.target()));
+	    for (String key : keys)
+		line.append("," + csvField(cell.overrides.get(key)));
+	    line.append("," + cell.exitStatus + "," + cell.wallMillis);
+	    for (String name : counters) {
+		String value = cell.counters.get(name);
+		line.append("," + (value == null ? "" : value));
+	    }
+	    writer.write(line + "\n");
+	}
+    }
+
+    private static String csvField(String value) {
+	if (value.indexOf(',') < 0 && value.indexOf('"') < 0)
+	    return value;
+
+	return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private void writeJSON(Writer writer, List<Cell> cells)
+	throws IOException {
+	writer.write("[\n");
+
+	for (int i=0; i<cells.size(); i++) {
+	    Cell cell = cells.get(i);
+
+	    writer.write("  { \"cell\": " + cell.id
+			 + ", \"target\": " + jsonString(cell.target())
+			 + ", \"config\": {");
+
+	    String separator = " ";
+	    for (Map.Entry<String, String> entry :
+		     cell.overrides.entrySet()) {
+		writer.write(separator + jsonString(entry.getKey()) + ": "
+			     + jsonString(entry.getValue()));
+		separator = ", ";
+	    }
+
+	    writer.write(" }, \"exitStatus\": " + cell.exitStatus
+			 + ", \"wallMillis\": " + cell.wallMillis
+			 + ", \"stats\": {");
+
+	    separator = " ";
+	    for (Map.Entry<String, String> entry :
+		     cell.counters.entrySet()) {
+		writer.write(separator + jsonString(entry.getKey()) + ": "
+			     + entry.getValue());
+		separator = ", ";
+	    }
+
+	    writer.write(" } }" + (i+1 < cells.size() ? "," : "") + "\n");
+	}
+
+	writer.write("]\n");
+    }
+
+    private static String jsonString(String value) {
+	StringBuffer buffer = new StringBuffer("\"");
+	for (int i=0; i<value.length(); i++) {
+	    char c = value.charAt(i);
+	    if (c == '"' || c == '\\')
+		buffer.append('\\').append(c);
+	    else if (c < 0x20)
+		buffer.append(String.format("\\u%04x", (int) c));
+	    else
+		buffer.append(c);
+	}
+	return buffer.append('"').toString();
+    }
+
+    private static List<String> readLines(String fileName)
+	throws IOException {
+	ArrayList<String> lines = new ArrayList<String>();
+	BufferedReader reader = new BufferedReader(new FileReader(fileName));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null)
+		lines.add(line);
+	}
+	finally {
+	    reader.close();
+	}
+	return lines;
+    }
+
+    /**
+     * Return the key set by a line of a configuration file.
+     *
+     * @return	the key, or <tt>null</tt> if the line sets no key.
+     */
+    private static String configKey(String line) {
+	int comment = line.indexOf('#');
+	if (comment >= 0)
+	    line = line.substring(0, comment);
+
+	int equals = line.indexOf('=');
+	if (equals < 0)
+	    return null;
+
+	return line.substring(0, equals).trim();
+    }
+
+    /**
+     * One run of Nachos: a program or grader with a set of overrides.
+     */
+    private class Cell implements Callable<Cell> {
+	Cell(int id, String[] targetArgs, Map<String, String> overrides,
+	     List<String> baseConfig) {
+	    this.id = id;
+	    this.targetArgs = targetArgs;
+	    this.overrides = overrides;
+	    this.baseConfig = baseConfig;
+	}
+
+	String target() {
+	    return (targetArgs.length == 0) ? "" : targetArgs[1];
+	}
+
+	String describe() {
+	    String description = target();
+	    for (Map.Entry<String, String> entry : overrides.entrySet())
+		description += " " + entry.getKey() + "=" + entry.getValue();
+	    return description.trim();
+	}
+
+	public Cell call() throws IOException, InterruptedException {
+	    File config = File.createTempFile("nachos-sweep-", ".conf");
+	    try {
+		writeConfig(config);
+
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"),
+				     "bin/java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("nachos.machine.Machine");
+		command.add("-[]");
+		command.add(config.getPath());
+		for (String arg : targetArgs)
+		    command.add(arg);
+		for (String arg : extraArgs)
+		    command.add(arg);
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+
+		long startTime = System.nanoTime();
+		Process process = builder.start();
+		process.getOutputStream().close();
+		output = readAll(process.getInputStream());
+		exitStatus = process.waitFor();
+		wallMillis = (System.nanoTime() - startTime) / 1000000;
+	    }
+	    finally {
+		config.delete();
+	    }
+
+	    for (String line : output.split("\n")) {
+		if (!line.startsWith(countersPrefix))
+		    continue;
+
+		String[] pairs =
+		    line.substring(countersPrefix.length()).trim().split(" ");
+		for (String pair : pairs) {
+		    int equals = pair.indexOf('=');
+		    if (equals > 0) {
+			counters.put(pair.substring(0, equals),
+				     pair.substring(equals+1));
+		    }
+		}
+	    }
+
+	    return this;
+	}
+
+	/**
+	 * Write the base configuration with this cell's overrides applied.
+	 * Nachos rejects a key set twice, so overridden lines are left out.
+	 */
+	private void writeConfig(File config) throws IOException {
+	    PrintWriter writer = new PrintWriter(new FileWriter(config));
+	    try {
+		for (String line : baseConfig) {
+		    String key = configKey(line);
+		    if (key == null || (!overrides.containsKey(key) &&
+					!key.equals(printCountersKey)))
+			writer.println(line);
+		}
+
+		for (Map.Entry<String, String> entry : overrides.entrySet()) {
+		    String value = entry.getValue();
+		    if (value.matches(".*[\\s#].*"))
+			value = "\"" + value + "\"";
+		    writer.println(entry.getKey() + " = " + value);
+		}
+
+		writer.println(printCountersKey + " = true");
+	    }
+	    finally {
+		writer.close();
+	    }
+	}
+
+	private String readAll(InputStream in) throws IOException {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    byte[] buffer = new byte[4096];
+	    int length;
+	    while ((length = in.read(buffer)) > 0)
+		bytes.write(buffer, 0, length);
+	    return bytes.toString();
+	}
+
+	int id;
+	String[] targetArgs;
+	Map<String, String> overrides;
+	List<String> baseConfig;
+
+	int exitStatus = -1;
+	long wallMillis = 0;
+	String output = "";
+	LinkedHashMap<String, String> counters =
+	    new LinkedHashMap<String, String>();
+    }
+
+    private String configFileName = "nachos.conf";
+    private ArrayList<String[]> targets = new ArrayList<String[]>();
+    private String[] extraArgs = new String[0];
+    private int numWorkers = Runtime.getRuntime().availableProcessors();
+    private String outputFileName = null;
+    private boolean json = false;
+
+    private ArrayList<String> keys = new ArrayList<String>();
+    private ArrayList<String[]> values = new ArrayList<String[]>();
+
+    private static final String countersPrefix = "Counters: ";
+    private static final String printCountersKey = "Machine.printCounters";
+}
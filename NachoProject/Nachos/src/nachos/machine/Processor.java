@@ -4,6 +4,24 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,12 +63,115 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	String memoryFile = Config.getString("Processor.memoryFile", null);
+	if (memoryFile == null) {
+	    mainMemory = new byte[pageSize * numPhysPages];
+	    memoryBuffer = null;
+	}
+	else {
+	    mainMemory = null;
+	    memoryBuffer = mapMemoryFile(memoryFile, pageSize * numPhysPages);
+	}
+
+	if (Config.getBoolean("Processor.decodeCache", false))
+	    decodedPages = new Decoded[numPhysPages][];
+	else
+	    decodedPages = null;
+
+	batchTicks = Config.getBoolean("Processor.batchTicks", false);
+
+	// translation tracing needs every access to go through the slow path
+	int microTLBSize = Config.getInteger("Processor.microTLBSize", 64);
+	if (microTLBSize > 0 && !Lib.test(dbgProcessor)) {
+	    Lib.assertTrue((microTLBSize & (microTLBSize-1)) == 0,
+			   "Processor.microTLBSize must be a power of 2");
+	    microTLBMask = microTLBSize - 1;
+	    microReadTag = new int[microTLBSize];
+	    microReadBase = new int[microTLBSize];
+	    microWriteTag = new int[microTLBSize];
+	    microWriteBase = new int[microTLBSize];
+	    for (int i=0; i<microTLBSize; i++) {
+		microReadTag[i] = -1;
+		microWriteTag[i] = -1;
+	    }
+	}
+
+	String engine = Config.getString("Processor.engine", "interpreter");
+	if (engine.equals("threaded")) {
+	    blockPages = new Block[numPhysPages][];
+	    interpretOnly = new boolean[numPhysPages];
+	}
+	else {
+	    Lib.assertTrue(engine.equals("interpreter"),
+			   "unknown Processor.engine: " + engine);
+	    blockPages = null;
+	    interpretOnly = null;
+	}
+
+	if (Config.getBoolean("Processor.profile", false)) {
+	    profilePages = new HashMap<Integer, ProfilePage>();
+	    profiledExecutables = new ArrayList<Coff>();
+	    profiledNames = new ArrayList<String>();
+	}
+	else {
+	    profilePages = null;
+	    profiledExecutables = null;
+	    profiledNames = null;
+	}
+
+	if (Config.getBoolean("Processor.cache", false)) {
+	    // a secondary cache of size 0 is left out
+	    Cache secondary = null;
+	    if (Config.getInteger("Cache.L2.size", 32768) > 0)
+		secondary = new Cache("L2", 32768, 8, 64, 10, null);
+		
+	    instructionCache = new Cache("L1I", 4096, 2, 32, 0, secondary);
+	    dataCache = new Cache("L1D", 4096, 2, 32, 0, secondary);
+	    memoryLatency = Config.getInteger("Cache.memoryLatency", 50);
+	}
+	else {
+	    instructionCache = null;
+	    dataCache = null;
+	}
+
+	sampleFastForward =
+	    Config.getInteger("Processor.sampleFastForward", 0);
+	sampleWarmup = Config.getInteger("Processor.sampleWarmup", 2000);
+	sampleWindow = Config.getInteger("Processor.sampleWindow", 10000);
+	if (sampleFastForward > 0) {
+	    // without the cache model there is nothing to sample, and the
+	    // estimates would all be zero
+	    Lib.assertTrue(instructionCache != null,
+			   "Processor.sampleFastForward needs Processor.cache");
+	    Lib.assertTrue(sampleWarmup >= 0 && sampleWindow > 0,
+			   "Processor.sampleWindow must be positive");
+
+	    // fast-forward first, with the caches switched off
+	    sampledInstructionCache = instructionCache;
+	    sampledDataCache = dataCache;
+	    instructionCache = null;
+	    dataCache = null;
+	    samplePhaseEnd = sampleFastForward;
+	}
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		Lib.assertTrue(tlbSize > 0,
+			       "Processor.tlbSize must be positive");
+	    }
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    // at least twice as many buckets as entries, to keep chains short
+	    int numBuckets = Integer.highestOneBit(tlbSize) * 2;
+	    tlbBucketMask = numBuckets - 1;
+	    tlbBuckets = new int[numBuckets];
+	    for (int i=0; i<numBuckets; i++)
+		tlbBuckets[i] = -1;
+	    tlbNext = new int[tlbSize];
 	}
 	else {
 	    translations = null;
@@ -91,17 +212,541 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	if (restorePoint != null) {
+	    Checkpoint checkpoint = restorePoint;
+	    restorePoint = null;
+	    checkpoint.restore(this, Machine.interrupt(), privilege.stats);
+	}
+
+	flushMicroTLB();
+
 	Instruction inst = new Instruction();
+
+	// in sampling mode, the profiler and the cache model only see the
+	// instructions in each measurement window
+	if (sampleFastForward > 0) {
+	    while (true) {
+		while (sampleInstructions() >= samplePhaseEnd)
+		    nextSamplePhase();
+
+		if (samplePhase == phaseFastForward)
+		    runFast(inst);
+		else
+		    runInstrumented(inst);
+	    }
+	}
+	// the profiler and the cache model must see every instruction, so
+	// they always interpret
+	else if (profilePages != null || instructionCache != null) {
+	    while (true)
+		runInstrumented(inst);
+	}
+	// the threaded engine skips the per-instruction tracing
+	else if (blockPages != null && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble)) {
+	    while (true) {
+		try {
+		    runBlock(inst);
+		}
+		catch (MipsException e) {
+		    handle(e);
+		    tick();
+		}
+	    }
+	}
+	else {
+	    while (true) {
+		try {
+		    inst.run();
+		}
+		catch (MipsException e) {
+		    handle(e);
+		}
+
+		tick();
+	    }
+	}
+    }
+
+    /**
+     * Interpret one instruction, recording it in the profile and passing its
+     * memory accesses through the cache model, and charge its ticks.
+     */
+    private void runInstrumented(Instruction inst) {
+	int pc = registers[regPC];
+	MipsException exception = null;
+	try {
+	    inst.run();
+	}
+	catch (MipsException e) {
+	    exception = e;
+	}
+
+	// tick() and handle() can switch to another user thread, which runs
+	// instructions of its own, so this instruction's stalls are taken off
+	// the shared count and charged to it before the kernel gets control
+	long stalls = stallTicks;
+	stallTicks = 0;
+
+	if (profilePages != null) {
+	    profile(pc, exception == null && inst.test(Mips.BRANCH),
+		    exception != null, stalls);
+	}
+
+	// a stall tick can make an interrupt due, like any other
+	for (; stalls > 0; stalls--)
+	    tick(false);
+
+	if (exception != null)
+	    handle(exception);
+
+	tick();
+    }
+
+    /**
+     * Run one basic block with the threaded engine, or if it is not
+     * selected, interpret one instruction, with the profiler and the
+     * cache model switched off.
+     */
+    private void runFast(Instruction inst) {
+	try {
+	    if (blockPages != null) {
+		runBlock(inst);
+		return;
+	    }
+	    inst.run();
+	}
+	catch (MipsException e) {
+	    handle(e);
+	}
+
+	tick();
+    }
+
+    /**
+     * Return the number of user instructions executed so far, in sampling
+     * mode. Every user tick is an instruction, except those spent stalled on
+     * the caches.
+     */
+    private long sampleInstructions() {
+	Stats stats = privilege.stats;
+
+	return (stats.userTicks + owedTicks) / Stats.UserTick
+	    - stats.numCacheStallTicks / Stats.UserTick;
+    }
+
+    /**
+     * Move on to the next phase of sampling: from fast-forwarding to warming
+     * up the caches, from warming up to measuring, and from measuring back to
+     * fast-forwarding. A measurement window adds the counters it changed to
+     * the sample.
+     */
+    private void nextSamplePhase() {
+	Stats stats = privilege.stats;
+	long now = sampleInstructions();
+
+	switch (samplePhase) {
+	case phaseFastForward:
+	    instructionCache = sampledInstructionCache;
+	    dataCache = sampledDataCache;
+	    profileBlockEnded = true;
+	    samplePhase = phaseWarmup;
+	    samplePhaseEnd = now + sampleWarmup;
+	    break;
+
+	case phaseWarmup:
+	    sampleStart = cacheCounters();
+	    sampleStartInstructions = now;
+	    samplePhase = phaseMeasure;
+	    samplePhaseEnd = now + sampleWindow;
+	    break;
+
+	case phaseMeasure:
+	    long[] end = cacheCounters();
+	    for (int i=0; i<end.length; i++)
+		sampleCounters[i] += end[i] - sampleStart[i];
+	    stats.numSampledInstructions += now - sampleStartInstructions;
+
+	    instructionCache = null;
+	    dataCache = null;
+	    samplePhase = phaseFastForward;
+	    samplePhaseEnd = now + sampleFastForward;
+	    break;
+	}
+    }
+
+    private long[] cacheCounters() {
+	Stats stats = privilege.stats;
+
+	return new long[] { stats.numL1IMisses, stats.numL1DMisses,
+			    stats.numL2Misses, stats.numCacheStallTicks };
+    }
+
+    /**
+     * Estimate the cache counters and user ticks of the whole run from the
+     * measurement windows, as if every instruction had been measured. Does
+     * nothing unless <tt>Processor.sampleFastForward</tt> is set.
+     */
+    void extrapolateSamples() {
+	Stats stats = privilege.stats;
+
+	if (sampleFastForward == 0 || stats.numSampledInstructions == 0)
+	    return;
+
+	long instructions = sampleInstructions();
+	double scale = (double) instructions / stats.numSampledInstructions;
+
+	stats.estimatedL1IMisses = Math.round(sampleCounters[0] * scale);
+	stats.estimatedL1DMisses = Math.round(sampleCounters[1] * scale);
+	stats.estimatedL2Misses = Math.round(sampleCounters[2] * scale);
+	stats.estimatedCacheStallTicks = Math.round(sampleCounters[3] * scale);
+	stats.estimatedUserTicks =
+	    instructions * Stats.UserTick + stats.estimatedCacheStallTicks;
+    }
+
+    /**
+     * Advance the simulated time after a user instruction. With
+     * <tt>Processor.batchTicks</tt> set, ticks that cannot make an interrupt
+     * handler due are only counted here, and are charged all at once before
+     * the next tick that can. Interrupts therefore still occur on exactly the
+     * same instruction as if every tick were charged separately.
+     */
+    private void tick() {
+	tick(true);
+    }
+
+    /**
+     * Advance the simulated time by one user tick.
+     *
+     * @param	boundary	<tt>false</tt> if more ticks are still to be
+     *				charged to the current instruction, so that
+     *				the machine is not in a state that can be
+     *				saved.
+     */
+    private void tick(boolean boundary) {
+	if (quietTicks > 0) {
+	    quietTicks--;
+	    owedTicks++;
+	    return;
+	}
+
+	chargeOwedTicks();
+
+	// the epoch changes if an interrupt handler ran
+	int epoch = blockEpoch;
+	privilege.interrupt.tick(false);
+	if (epoch != blockEpoch)
+	    flushMicroTLB();
+
+	if (checkpointFileName != null && boundary)
+	    saveCheckpoint();
+
+	if (batchTicks)
+	    quietTicks = privilege.interrupt.quietUserTicks();
+    }
+
+    /**
+     * Charge any ticks that <tt>tick()</tt> has only counted so far.
+     */
+    private void chargeOwedTicks() {
+	if (owedTicks > 0) {
+	    privilege.interrupt.tickUser(owedTicks);
+	    owedTicks = 0;
+	}
+    }
+
+    /**
+     * Give the kernel control to handle an exception. The kernel sees the
+     * correct simulated time, and may schedule new interrupts, so the count
+     * of quiet ticks must be recomputed afterwards.
+     *
+     * @param	e	the exception to handle.
+     */
+    private void handle(MipsException e) {
+	chargeOwedTicks();
+	quietTicks = 0;
+
+	e.handle();
+	flushMicroTLB();
+    }
+
+    /**
+     * Charge the ticks of the instruction at <tt>pc</tt>. An instruction
+     * starts a new basic block if it does not follow the previous one, or if
+     * the previous one was a delay slot or raised an exception.
+     *
+     * @param	pc		the virtual address of the instruction.
+     * @param	isBranch	<tt>true</tt> if the instruction was a branch or
+     *				jump, so that it is followed by a delay slot.
+     * @param	raised		<tt>true</tt> if the instruction raised an
+     *				exception.
+     * @param	stalls		the ticks the instruction stalled for.
+     */
+    private void profile(int pc, boolean isBranch, boolean raised,
+			 long stalls) {
+	int vpn = pc >>> pageShift;
+	if (profilePage == null || vpn != profileVPN) {
+	    profilePage = profilePages.get(vpn);
+	    if (profilePage == null) {
+		profilePage = new ProfilePage();
+		profilePages.put(vpn, profilePage);
+	    }
+	    profileVPN = vpn;
+	}
+
+	int index = (pc & (pageSize-1)) >>> 2;
+
+	if (profileBlockEnded || pc != profileLastPC + 4) {
+	    profilePage.entries[index]++;
+	    profileBlockPage = profilePage;
+	    profileBlockIndex = index;
+	}
+
+	// memory stalls are charged to the instruction that caused them
+	long ticks = (1 + stalls) * Stats.UserTick;
+	profilePage.ticks[index] += ticks;
+	profileBlockPage.blockTicks[profileBlockIndex] += ticks;
+
+	profileLastPC = pc;
+	profileBlockEnded = raised || profileInDelaySlot;
+	profileInDelaySlot = isBranch && !raised;
+    }
+
+    /**
+     * Pass a memory access through the cache hierarchy, and count the ticks
+     * it stalls for. Each access charges the latency of every level it
+     * reaches, and the memory latency if it misses in them all.
+     *
+     * @param	cache	the first level cache to access.
+     * @param	paddr	the physical address being accessed.
+     * @param	write	<tt>true</tt> if the access is a write.
+     */
+    private void accessCache(Cache cache, int paddr, boolean write) {
+	Stats stats = privilege.stats;
+	boolean instruction = (cache == instructionCache);
+	int ticks = cache.getLatency();
+
+	if (cache.access(paddr, write)) {
+	    if (instruction)
+		stats.numL1IHits++;
+	    else
+		stats.numL1DHits++;
+	}
+	else {
+	    if (instruction)
+		stats.numL1IMisses++;
+	    else
+		stats.numL1DMisses++;
+
+	    Cache secondary = cache.getNext();
+	    if (secondary != null) {
+		ticks += secondary.getLatency();
+		
+		// the line is read from the next level even for a write
+		if (secondary.access(paddr, false)) {
+		    stats.numL2Hits++;
+		}
+		else {
+		    stats.numL2Misses++;
+		    ticks += memoryLatency;
+		}
+	    }
+	    else {
+		ticks += memoryLatency;
+	    }
+	}
+
+	stats.numCacheStallTicks += ticks;
+	stallTicks += ticks;
+    }
+
+    /**
+     * Note that an executable has been loaded, so that the profile can name
+     * the section each instruction belongs to. Does nothing unless
+     * <tt>Processor.profile</tt> is set.
+     *
+     * @param	name	the name of the executable.
+     * @param	coff	the executable.
+     */
+    void profileExecutable(String name, Coff coff) {
+	if (profilePages != null) {
+	    profiledNames.add(name);
+	    profiledExecutables.add(coff);
+	}
+    }
+
+    /**
+     * Print the profile collected with <tt>Processor.profile</tt> set: the
+     * instructions that used the most ticks, and the basic blocks that used
+     * the most ticks, counting from the first instruction of each block.
+     * Does nothing if profiling is off.
+     */
+    void printProfile() {
+	if (profilePages == null)
+	    return;
+
+	ArrayList<long[]> instructions = new ArrayList<long[]>();
+	ArrayList<long[]> blocks = new ArrayList<long[]>();
+	long totalTicks = 0;
+
+	for (Map.Entry<Integer, ProfilePage> entry : profilePages.entrySet()) {
+	    int base = entry.getKey() << pageShift;
+	    ProfilePage page = entry.getValue();
+
+	    for (int i=0; i<ProfilePage.size; i++) {
+		int pc = base + i*4;
+		if (page.ticks[i] > 0) {
+		    instructions.add(new long[] { page.ticks[i], pc });
+		    totalTicks += page.ticks[i];
+		}
+		if (page.entries[i] > 0) {
+		    blocks.add(new long[] { page.blockTicks[i], pc,
+					    page.entries[i] });
+		}
+	    }
+	}
+
+	Comparator<long[]> byTicks = new Comparator<long[]>() {
+		public int compare(long[] a, long[] b) {
+		    if (a[0] != b[0])
+			return a[0] > b[0] ? -1 : 1;
+		    return Long.compare(a[1] & 0xFFFFFFFFL,
+					b[1] & 0xFFFFFFFFL);
+		}
+	    };
+	Collections.sort(instructions, byTicks);
+	Collections.sort(blocks, byTicks);
+
+	System.out.println("Profile: " + totalTicks + " user ticks in "
+			   + instructions.size() + " instructions, "
+			   + blocks.size() + " basic blocks");
+	if (totalTicks == 0)
+	    return;
+
+	System.out.println("Hottest instructions:");
+	System.out.println("         ticks      %  pc          section");
+	for (int i=0; i<instructions.size() && i<profileLength; i++) {
+	    long[] line = instructions.get(i);
+	    System.out.println(profileColumn(line[0], 14)
+			       + profilePercent(line[0], totalTicks) + "  "
+			       + Lib.toHexString((int) line[1]) + "  "
+			       + profileSection((int) line[1]));
+	}
+
+	System.out.println("Hottest basic blocks:");
+	System.out.println("         ticks      %     entries  length"
+			   + "  pc          section");
+	for (int i=0; i<blocks.size() && i<profileLength; i++) {
+	    long[] line = blocks.get(i);
+	    long length = line[0] / Stats.UserTick / line[2];
+	    System.out.println(profileColumn(line[0], 14)
+			       + profilePercent(line[0], totalTicks)
+			       + profileColumn(line[2], 12)
+			       + profileColumn(length, 8) + "  "
+			       + Lib.toHexString((int) line[1]) + "  "
+			       + profileSection((int) line[1]));
+	}
+    }
+
+    private static String profileColumn(long value, int width) {
+	String s = Long.toString(value);
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    private static String profilePercent(long ticks, long totalTicks) {
+	long tenths = ticks * 1000 / totalTicks;
+	return profileColumn(tenths/10, 5) + "." + (tenths%10) + "%";
+    }
+
+    /**
+     * Find the executable section containing a virtual address, checking the
+     * most recently loaded executables first.
+     *
+     * @param	vaddr	the virtual address.
+     * @return	the executable and section names, or <tt>?</tt> if no section
+     *		contains the address.
+     */
+    private String profileSection(int vaddr) {
+	int vpn = vaddr >>> pageShift;
 	
-	while (true) {
-	    try {
-		inst.run();
+	for (int i=profiledExecutables.size()-1; i>=0; i--) {
+	    Coff coff = profiledExecutables.get(i);
+	    for (int s=0; s<coff.getNumSections(); s++) {
+		CoffSection section = coff.getSection(s);
+		int first = section.getFirstVPN();
+		if (vpn >= first && vpn < first + section.getLength())
+		    return profiledNames.get(i) + " " + section.getName();
 	    }
-	    catch (MipsException e) {
-		e.handle();
+	}
+
+	return "?";
+    }
+
+    /**
+     * Invalidate the micro-TLB. This must happen whenever a translation it
+     * may have cached could have changed. The kernel can only change
+     * translations while it has control, so the micro-TLB is flushed each
+     * time control returns to user code, as well as by
+     * <tt>setPageTable()</tt> and <tt>writeTLBEntry()</tt>.
+     */
+    private void flushMicroTLB() {
+	// entries tagged with an older generation no longer match
+	microGeneration += 1 << microGenerationShift;
+
+	// the last generation is reserved, because empty entries hold -1
+	if (microGeneration == (-1 << microGenerationShift)) {
+	    microGeneration = 0;
+
+	    if (microReadTag != null) {
+		for (int i=0; i<microReadTag.length; i++) {
+		    microReadTag[i] = -1;
+		    microWriteTag[i] = -1;
+		}
 	    }
+	}
+    }
+
+    /**
+     * Execute the basic block starting at the current PC, advancing the
+     * simulated time after each instruction exactly as <tt>run()</tt> does.
+     * The block is translated the first time it is entered. Execution falls
+     * back to the interpreter for pages that user code has written to.
+     *
+     * <p>
+     * The rest of the block is abandoned whenever the kernel gets control
+     * (an interrupt handler or an exception), or a translated page is
+     * modified, because either could invalidate the block. A superinstruction
+     * checks for this between the instructions it combines.
+     *
+     * @param	inst	the instruction state to execute with.
+     * @exception	MipsException	if an instruction raised an exception.
+     *				All instructions before it have been
+     *				charged a tick; the faulting one has not.
+     */
+    private void runBlock(Instruction inst) throws MipsException {
+	int pc = registers[regPC];
+	int paddr = translate(pc, 4, false);
+
+	if (interpretOnly[paddr / pageSize]) {
+	    inst.run();
+	    tick();
+	    return;
+	}
+
+	Op[] ops = fetchBlock(paddr).ops;
+	int epoch = blockEpoch;
+
+	for (int i=0; i<ops.length; i++) {
+	    Op op = ops[i];
+	    if (!op.run(inst))
+		return;
+	    tick();
 
-	    privilege.interrupt.tick(false);
+	    pc += op.length*4;
+	    if (epoch != blockEpoch || registers[regPC] != pc)
+		return;
 	}
     }
 
@@ -174,7 +819,152 @@ public final class Processor {
     public void setPageTable(TranslationEntry[] pageTable) {
 	Lib.assertTrue(!usingTLB);
 
+	// a checkpoint can only describe one address space
+	if (pageTable != null) {
+	    if (firstPageTable == null)
+		firstPageTable = pageTable;
+	    else if (pageTable != firstPageTable)
+		multiplePageTables = true;
+	}
+
 	this.translations = pageTable;
+	flushMicroTLB();
+    }
+
+    /**
+     * Write a checkpoint at the next instruction boundary. Called by the
+     * <tt>checkpoint</tt> interrupt that <tt>-saveprocess</tt> schedules.
+     *
+     * @param	fileName	the file to write the checkpoint to.
+     */
+    void requestCheckpoint(String fileName) {
+	checkpointFileName = fileName;
+    }
+
+    /**
+     * Restore a checkpoint the first time a user program starts running.
+     *
+     * @param	checkpoint	the checkpoint read by <tt>-resumeprocess</tt>.
+     */
+    void restoreFrom(Checkpoint checkpoint) {
+	checkCheckpointable();
+	restorePoint = checkpoint;
+    }
+
+    /**
+     * Fail with an assertion unless the machine is configured so that a
+     * checkpoint can capture all of it: a kernel using a single-level page
+     * table, for one user process only, and no cache model, whose contents
+     * are not saved.
+     */
+    void checkCheckpointable() {
+	Lib.assertTrue(!usingTLB, "checkpoints need a kernel without a TLB");
+	Lib.assertTrue(instructionCache == null &&
+		       sampledInstructionCache == null,
+		       "checkpoints need Processor.cache to be off");
+	Lib.assertTrue(!multiplePageTables,
+		       "checkpoints need a kernel running one user process");
+    }
+
+    private void saveCheckpoint() {
+	final String fileName = checkpointFileName;
+	checkpointFileName = null;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			Checkpoint.save(fileName, Processor.this,
+					Machine.interrupt(), privilege.stats);
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("unable to write checkpoint: " + e);
+		    }
+		}
+	    });
+
+	Lib.debug(dbgProcessor, "checkpoint written to " + fileName +
+		  " at time = " + privilege.stats.totalTicks);
+    }
+
+    /**
+     * Write the registers, any delayed load in progress, the page table and
+     * physical memory to a checkpoint.
+     */
+    void saveState(DataOutputStream out) throws IOException {
+	checkCheckpointable();
+
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+	out.writeInt(loadTarget);
+	out.writeInt(loadMask);
+	out.writeInt(loadValue);
+
+	out.writeInt(translations == null ? 0 : translations.length);
+	for (int i=0; translations != null && i<translations.length; i++) {
+	    TranslationEntry entry = translations[i];
+	    out.writeInt(entry.vpn);
+	    out.writeInt(entry.ppn);
+	    out.writeBoolean(entry.valid);
+	    out.writeBoolean(entry.readOnly);
+	    out.writeBoolean(entry.used);
+	    out.writeBoolean(entry.dirty);
+	}
+
+	out.writeInt(numPhysPages);
+	byte[] page = new byte[pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    readPhysical(ppn*pageSize, page, 0, pageSize);
+	    out.write(page);
+	}
+    }
+
+    /**
+     * Read the state written by <tt>saveState()</tt> back in. The kernel must
+     * already have set a page table mapping the same virtual pages to the
+     * same physical pages, since its own record of which pages are free
+     * cannot be restored.
+     */
+    void restoreState(DataInputStream in) throws IOException {
+	checkCheckpointable();
+
+	int[] savedRegisters = new int[numUserRegisters];
+	for (int i=0; i<numUserRegisters; i++)
+	    savedRegisters[i] = in.readInt();
+	int savedLoadTarget = in.readInt();
+	int savedLoadMask = in.readInt();
+	int savedLoadValue = in.readInt();
+
+	int numEntries = in.readInt();
+	Lib.assertTrue(translations != null &&
+		       translations.length == numEntries,
+		       "checkpoint has a page table of a different size");
+	for (int i=0; i<numEntries; i++) {
+	    TranslationEntry entry = translations[i];
+	    int vpn = in.readInt(), ppn = in.readInt();
+	    Lib.assertTrue(entry.vpn == vpn && entry.ppn == ppn,
+			   "checkpoint maps virtual page " + vpn +
+			   " to a different physical page");
+	    entry.valid = in.readBoolean();
+	    entry.readOnly = in.readBoolean();
+	    entry.used = in.readBoolean();
+	    entry.dirty = in.readBoolean();
+	}
+
+	Lib.assertTrue(in.readInt() == numPhysPages,
+		       "checkpoint has a different amount of memory");
+	byte[] page = new byte[pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    in.readFully(page);
+	    writePhysical(ppn*pageSize, page, 0, pageSize);
+	}
+
+	System.arraycopy(savedRegisters, 0, registers, 0, numUserRegisters);
+	loadTarget = savedLoadTarget;
+	loadMask = savedLoadMask;
+	loadValue = savedLoadValue;
+
+	quietTicks = 0;
+	stallTicks = 0;
     }
 
     /**
@@ -215,7 +1005,42 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	if (translations[number].valid) {
+	    privilege.stats.numTLBEvictions++;
+	    removeTLBIndex(number);
+	}
+
 	translations[number] = new TranslationEntry(entry);
+	flushMicroTLB();
+
+	if (translations[number].valid) {
+	    int bucket = translations[number].vpn & tlbBucketMask;
+	    tlbNext[number] = tlbBuckets[bucket];
+	    tlbBuckets[bucket] = number;
+	}
+    }
+
+    /**
+     * Remove a valid TLB entry from the vpn index.
+     *
+     * @param	number	the index into the TLB.
+     */
+    private void removeTLBIndex(int number) {
+	int bucket = translations[number].vpn & tlbBucketMask;
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbNext[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; i != -1; i=tlbNext[i]) {
+	    if (tlbNext[i] == number) {
+		tlbNext[i] = tlbNext[number];
+		return;
+	    }
+	}
+
+	Lib.assertNotReached();
     }
 
     /**
@@ -232,17 +1057,178 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Physical memory is not an array if <tt>Processor.memoryFile</tt> is
+     * set; use <tt>getMemoryBuffer()</tt> instead.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is file-backed; use getMemoryBuffer()");
+	
 	return mainMemory;
     }
 
     /**
-     * Concatenate a page number and an offset into an address.
+     * Return a buffer whose contents are the physical memory, whether or not
+     * it is file-backed. The buffer's capacity is
+     * <tt>pageSize * getNumPhysPages()</tt>, and it has its own position and
+     * limit. Like the array returned by <tt>getMemory()</tt>, writing to it
+     * requires calling <tt>invalidateInstructionCache()</tt>.
      *
-     * @param	page	the page number. Must be between <tt>0</tt> and
-     *			<tt>(2<sup>32</sup> / pageSize) - 1</tt>.
+     * @return	a buffer sharing the contents of main memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	ByteBuffer buffer;
+	
+	if (mainMemory != null)
+	    buffer = ByteBuffer.wrap(mainMemory);
+	else
+	    buffer = memoryBuffer.duplicate();
+
+	return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Map the specified file as physical memory. The file is emptied first,
+     * so memory starts out zeroed, unless
+     * <tt>Processor.reloadMemoryFile</tt> is set, in which case whatever
+     * memory image it holds is kept. The file holds a complete image of
+     * physical memory after Nachos exits.
+     *
+     * @param	name	the name of the file.
+     * @param	size	the size of physical memory, in bytes.
+     * @return	the mapped file.
+     */
+    private ByteBuffer mapMemoryFile(final String name, final int size) {
+	final boolean reload =
+	    Config.getBoolean("Processor.reloadMemoryFile", false);
+
+	try {
+	    return privilege.doPrivileged(
+		new PrivilegedExceptionAction<ByteBuffer>() {
+		    public ByteBuffer run() throws IOException {
+			FileChannel channel =
+			    FileChannel.open(Paths.get(name),
+					     StandardOpenOption.READ,
+					     StandardOpenOption.WRITE,
+					     StandardOpenOption.CREATE);
+			try {
+			    if (!reload)
+				channel.truncate(0);
+			    
+			    // the mapping outlives the channel
+			    return channel.map(FileChannel.MapMode.READ_WRITE,
+					       0, size);
+			}
+			finally {
+			    channel.close();
+			}
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not map " + name + ": " +
+				 e.getException());
+	    return null;
+	}
+    }
+
+    /**
+     * Copy bytes out of physical memory.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the bytes will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readPhysical(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= numPhysPages*pageSize);
+
+	if (mainMemory != null)
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	else
+	    memoryBuffer.duplicate().position(paddr).get(data, offset, length);
+    }
+
+    /**
+     * Copy bytes into physical memory. Unlike writing to the array returned
+     * by <tt>getMemory()</tt>, this discards any instructions the processor
+     * has decoded from the modified pages.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the bytes.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writePhysical(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= numPhysPages*pageSize);
+
+	if (mainMemory != null)
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	else
+	    memoryBuffer.duplicate().position(paddr).put(data, offset, length);
+
+	if (length > 0) {
+	    for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+		invalidateInstructionCache(ppn);
+	}
+    }
+
+    /**
+     * Copy one physical page to another, for example to duplicate an address
+     * space.
+     *
+     * @param	srcPPN	the page to copy from.
+     * @param	dstPPN	the page to copy to.
+     */
+    public void copyPhysicalPage(int srcPPN, int dstPPN) {
+	Lib.assertTrue(srcPPN >= 0 && srcPPN < numPhysPages);
+	Lib.assertTrue(dstPPN >= 0 && dstPPN < numPhysPages);
+
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, srcPPN*pageSize,
+			     mainMemory, dstPPN*pageSize, pageSize);
+	}
+	else {
+	    ByteBuffer src = memoryBuffer.duplicate();
+	    src.position(srcPPN*pageSize).limit((srcPPN+1)*pageSize);
+	    memoryBuffer.duplicate().position(dstPPN*pageSize).put(src);
+	}
+	invalidateInstructionCache(dstPPN);
+    }
+
+    /**
+     * Discard any decoded instructions cached for the specified physical
+     * page. Kernels that write physical memory directly, through the array
+     * returned by <tt>getMemory()</tt>, must call this for every page they
+     * modify, so that the processor does not execute stale instructions.
+     * Stores made by user programs, and writes through
+     * <tt>writePhysical()</tt>, are tracked automatically.
+     *
+     * @param	ppn	the physical page whose contents changed.
+     */
+    public void invalidateInstructionCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	if (decodedPages != null)
+	    decodedPages[ppn] = null;
+
+	if (blockPages != null) {
+	    blockPages[ppn] = null;
+	    interpretOnly[ppn] = false;
+	    blockEpoch++;
+	}
+    }
+
+    /**
+     * Concatenate a page number and an offset into an address.
+     *
+     * @param	page	the page number. Must be between <tt>0</tt> and
+     *			<tt>(2<sup>32</sup> / pageSize) - 1</tt>.
      * @param	offset	the offset within the page. Must be between <tt>0</tt>
      *			and
      *			<tt>pageSize - 1</tt>.
@@ -293,6 +1279,37 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int translate(int vaddr, int size, boolean writing)
+	throws MipsException {
+	// try the micro-TLB first; misaligned accesses always miss
+	if (microReadTag != null && (vaddr & (size-1)) == 0) {
+	    int vpn = vaddr >>> pageShift;
+	    int index = vpn & microTLBMask;
+	    int tag = vpn | microGeneration;
+
+	    if (writing ? microWriteTag[index] == tag :
+		microReadTag[index] == tag) {
+		if (usingTLB)
+		    privilege.stats.numTLBHits++;
+		
+		return (writing ? microWriteBase[index] : microReadBase[index])
+		    + (vaddr & (pageSize-1));
+	    }
+	}
+
+	return translatePage(vaddr, size, writing);
+    }
+
+    /**
+     * Translate a virtual address without using the micro-TLB, and add the
+     * translation to the micro-TLB if it succeeds.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translatePage(int vaddr, int size, boolean writing)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
@@ -301,7 +1318,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw mipsException(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -317,97 +1334,730 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw mipsException(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, find the first valid TLB entry with a matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
+	    int first = -1;
+	    for (int i=tlbBuckets[vpn & tlbBucketMask]; i != -1; i=tlbNext[i]) {
+		if (translations[i].vpn == vpn && (first == -1 || i < first))
+		    first = i;
 	    }
-	    if (entry == null) {
+	    if (first == -1) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw mipsException(exceptionTLBMiss, vaddr);
+	    }
+
+	    entry = translations[first];
+	    privilege.stats.numTLBHits++;
+	}
+
+	// check if trying to write a read-only page
+	if (entry.readOnly && writing) {
+	    Lib.debug(dbgProcessor, "\t\tread-only exception");
+	    throw mipsException(exceptionReadOnly, vaddr);
+	}
+
+	// check if physical page number is out of range
+	int ppn = entry.ppn;
+	if (ppn < 0 || ppn >= numPhysPages) {
+	    Lib.debug(dbgProcessor, "\t\tbad ppn");
+	    throw mipsException(exceptionBusError, vaddr);
+	}
+
+	// set used and dirty bits as appropriate
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	// the bits are now set, so later accesses can skip all of the above
+	if (microReadTag != null) {
+	    int index = vpn & microTLBMask;
+	    
+	    microReadTag[index] = vpn | microGeneration;
+	    microReadBase[index] = ppn*pageSize;
+
+	    if (writing) {
+		microWriteTag[index] = vpn | microGeneration;
+		microWriteBase[index] = ppn*pageSize;
+	    }
+	}
+
+	int paddr = (ppn*pageSize) + offset;
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	return paddr;
+    }
+
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+     * and return the result.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMem(int vaddr, int size) throws MipsException {
+	return readMem(vaddr, size, dataCache);
+    }
+
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>
+     * through the specified first level cache, and return the result.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @param	cache	the first level cache, or <tt>null</tt> if the cache
+     *			model is disabled.
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMem(int vaddr, int size, Cache cache)
+	throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=" + size);
+
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	int paddr = translate(vaddr, size, false);
+	if (cache != null)
+	    accessCache(cache, paddr, false);
+
+	int value = loadPhysical(paddr, size);
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tvalue read=0x" +
+			       Lib.toHexString(value, size*2));
+	
+	return value;
+    }
+    
+    /**
+     * Read 1, 2, or 4 bytes of physical memory. The value is sign-extended,
+     * like <tt>Lib.bytesToInt()</tt>.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read.
+     * @return		the value read.
+     */
+    private int loadPhysical(int paddr, int size) {
+	if (mainMemory != null) {
+	    if (size == 4)
+		return (int) intView.get(mainMemory, paddr);
+	    else if (size == 2)
+		return (short) shortView.get(mainMemory, paddr);
+	    else
+		return mainMemory[paddr];
+	}
+	else {
+	    if (size == 4)
+		return (int) intBufferView.get(memoryBuffer, paddr);
+	    else if (size == 2)
+		return (short) shortBufferView.get(memoryBuffer, paddr);
+	    else
+		return memoryBuffer.get(paddr);
+	}
+    }
+
+    /**
+     * Write 1, 2, or 4 bytes of physical memory.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write.
+     * @param	value	the value to store.
+     */
+    private void storePhysical(int paddr, int size, int value) {
+	if (mainMemory != null) {
+	    if (size == 4)
+		intView.set(mainMemory, paddr, value);
+	    else if (size == 2)
+		shortView.set(mainMemory, paddr, (short) value);
+	    else
+		mainMemory[paddr] = (byte) value;
+	}
+	else {
+	    if (size == 4)
+		intBufferView.set(memoryBuffer, paddr, value);
+	    else if (size == 2)
+		shortBufferView.set(memoryBuffer, paddr, (short) value);
+	    else
+		memoryBuffer.put(paddr, (byte) value);
+	}
+    }
+
+    /**
+     * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
+     * starting at <i>vaddr</i>.
+     *
+     * @param	vaddr	the virtual address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=" + size + ", value=0x"
+			       + Lib.toHexString(value, size*2));
+
+	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+	if (dataCache != null)
+	    accessCache(dataCache, paddr, true);
+
+	storePhysical(paddr, size, value);
+
+	int ppn = paddr / pageSize;
+
+	if (decodedPages != null)
+	    decodedPages[ppn] = null;
+
+	// self-modifying code: stop translating this page until it's reloaded
+	if (blockPages != null && blockPages[ppn] != null) {
+	    blockPages[ppn] = null;
+	    interpretOnly[ppn] = true;
+	    blockEpoch++;
+	}
+    }
+
+    /**
+     * Return the decoded form of the instruction word at the specified
+     * physical address, decoding it and caching the result if this is the
+     * first fetch from that address since its page was last modified.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return		the decoded instruction.
+     */
+    private Decoded fetchDecoded(int paddr) {
+	int ppn = paddr / pageSize;
+	
+	Decoded[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new Decoded[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	
+	Decoded decoded = page[index];
+	if (decoded == null) {
+	    decoded = new Decoded();
+	    decoded.decode(loadPhysical(paddr, 4));
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Return the basic block starting at the specified physical address,
+     * translating it if necessary.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return		the basic block.
+     */
+    private Block fetchBlock(int paddr) {
+	int ppn = paddr / pageSize;
+
+	Block[] page = blockPages[ppn];
+	if (page == null) {
+	    page = new Block[pageSize/4];
+	    blockPages[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+
+	Block block = page[index];
+	if (block == null) {
+	    block = translateBlock(paddr);
+	    page[index] = block;
+	}
+
+	return block;
+    }
+
+    /**
+     * Decode the basic block starting at the specified physical address. A
+     * block ends with the delay slot of its first branch or jump, with any
+     * instruction that always raises an exception, or at the end of the
+     * page, whichever comes first.
+     *
+     * <p>
+     * Each instruction is bound to a handler specialized for its operation
+     * and operands, and then common pairs are combined into
+     * superinstructions.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return		the decoded block.
+     */
+    private Block translateBlock(int paddr) {
+	int end = (paddr / pageSize + 1) * pageSize;
+	int length = 0;
+	boolean inDelaySlot = false;
+	
+	Decoded[] instructions = new Decoded[(end-paddr) / 4];
+
+	for (int addr=paddr; addr<end; addr+=4) {
+	    Decoded decoded = new Decoded();
+	    decoded.decode(loadPhysical(addr, 4));
+	    instructions[length++] = decoded;
+
+	    if (inDelaySlot)
+		break;
+
+	    int operation = decoded.info.operation;
+	    if (operation == Mips.SYSCALL || operation == Mips.UNIMPL ||
+		operation == Mips.INVALID)
+		break;
+
+	    inDelaySlot = Lib.test(Mips.BRANCH, decoded.info.flags);
+	}
+
+	Op[] ops = new Op[length];
+	for (int i=0; i<length; i++)
+	    ops[i] = translateOp(instructions[i]);
+
+	int fused = 0;
+	for (int i=0; i<length; i++) {
+	    Op op = null;
+	    if (i+1 < length) {
+		op = fuse(instructions[i], instructions[i+1],
+			  ops[i], ops[i+1]);
+	    }
+	    
+	    if (op != null)
+		i++;
+	    else
+		op = ops[i];
+
+	    ops[fused++] = op;
+	}
+
+	Block block = new Block();
+	block.ops = new Op[fused];
+	System.arraycopy(ops, 0, block.ops, 0, fused);
+	return block;
+    }
+
+    /**
+     * Return a handler that executes the specified instruction directly,
+     * without going through <tt>Instruction</tt>. Operations without a
+     * specialized handler, and all instructions that can overflow, fall back
+     * to the interpreter.
+     *
+     * <p>
+     * Each handler must have exactly the same effect as the interpreter,
+     * including its treatment of zero-extended immediates and of delayed
+     * loads.
+     *
+     * @param	decoded	the instruction to translate.
+     * @return	a handler for the instruction.
+     */
+    private Op translateOp(Decoded decoded) {
+	final int rs = decoded.rs, rt = decoded.rt, sh = decoded.sh;
+	final int dstReg = decoded.dstReg;
+	final int size = decoded.size;
+	final int imm = decoded.imm;
+	final int uimm = decoded.imm & 0xFFFF;
+	final int offset = decoded.imm << 2;
+	final int target = decoded.target << 2;
+	
+	int format = decoded.info.format;
+	int flags = decoded.info.flags;
+
+	final boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+	boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+	boolean shiftImmediate = Lib.test(Mips.SRC1SH, flags);
+
+	if (Lib.test(Mips.OVERFLOW, flags))
+	    return new Interpreted(decoded);
+
+	switch (decoded.info.operation) {
+	case Mips.ADD:
+	    if (immediate) {
+		return new Simple() {
+		    void execute() {
+			retire(dstReg, registers[rs] + imm);
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[rs] + registers[rt]);
+		}
+	    };
+	case Mips.SUB:
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[rs] - registers[rt]);
+		}
+	    };
+	case Mips.AND:
+	    if (immediate) {
+		return new Simple() {
+		    void execute() {
+			retire(dstReg, registers[rs] & uimm);
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[rs] & registers[rt]);
+		}
+	    };
+	case Mips.OR:
+	    if (immediate) {
+		return new Simple() {
+		    void execute() {
+			retire(dstReg, registers[rs] | uimm);
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[rs] | registers[rt]);
+		}
+	    };
+	case Mips.XOR:
+	    if (immediate) {
+		return new Simple() {
+		    void execute() {
+			retire(dstReg, registers[rs] ^ uimm);
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[rs] ^ registers[rt]);
+		}
+	    };
+	case Mips.NOR:
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, ~(registers[rs] | registers[rt]));
+		}
+	    };
+	case Mips.LUI:
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, uimm << 16);
+		}
+	    };
+	case Mips.SLT:
+	    // sltiu compares against the zero-extended immediate
+	    if (immediate && unsigned) {
+		return new Compare(dstReg) {
+		    int compare() {
+			return ((registers[rs]&0xFFFFFFFFL) < uimm) ? 1 : 0;
+		    }
+		};
+	    }
+	    else if (immediate) {
+		return new Compare(dstReg) {
+		    int compare() {
+			return (registers[rs] < imm) ? 1 : 0;
+		    }
+		};
+	    }
+	    else if (unsigned) {
+		return new Compare(dstReg) {
+		    int compare() {
+			return ((registers[rs]&0xFFFFFFFFL) <
+				(registers[rt]&0xFFFFFFFFL)) ? 1 : 0;
+		    }
+		};
+	    }
+	    return new Compare(dstReg) {
+		int compare() {
+		    return (registers[rs] < registers[rt]) ? 1 : 0;
+		}
+	    };
+	case Mips.SLL:
+	    if (shiftImmediate) {
+		return new Simple() {
+		    void execute() {
+			retire(dstReg, registers[rt] << sh);
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[rt] << (registers[rs]&0x1F));
+		}
+	    };
+	case Mips.SRA:
+	    if (shiftImmediate) {
+		return new Simple() {
+		    void execute() {
+			retire(dstReg, registers[rt] >> sh);
+		    }
+		};
 	    }
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[rt] >> (registers[rs]&0x1F));
+		}
+	    };
+	case Mips.SRL:
+	    // like the interpreter, shift the sign-extended register
+	    if (shiftImmediate) {
+		return new Simple() {
+		    void execute() {
+			retire(dstReg, (int) (((long) registers[rt]) >>> sh));
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, (int) (((long) registers[rt]) >>>
+					  (registers[rs]&0x1F)));
+		}
+	    };
+	case Mips.MULT:
+	    if (unsigned) {
+		return new Simple() {
+		    void execute() {
+			multiply((registers[rs]&0xFFFFFFFFL) *
+				 (registers[rt]&0xFFFFFFFFL));
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    multiply(((long) registers[rs]) * registers[rt]);
+		}
+	    };
+	case Mips.MFLO:
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[regLo]);
+		}
+	    };
+	case Mips.MFHI:
+	    return new Simple() {
+		void execute() {
+		    retire(dstReg, registers[regHi]);
+		}
+	    };
+	case Mips.LOAD:
+	    if (size == 4) {
+		return new Simple() {
+		    void execute() throws MipsException {
+			delayedLoad(rt, readMem(registers[rs] + imm, 4),
+				    0xFFFFFFFF);
+			advancePC();
+		    }
+		};
+	    }
+	    // lbu and lhu zero-extend the offset as well as the value
+	    final int loadOffset = unsigned ? uimm : imm;
+	    return new Simple() {
+		void execute() throws MipsException {
+		    int value = readMem(registers[rs] + loadOffset, size);
+		    if (!unsigned)
+			value = Lib.extend(value, 0, size*8);
+		    delayedLoad(rt, value, 0xFFFFFFFF);
+		    advancePC();
+		}
+	    };
+	case Mips.STORE:
+	    return new Simple() {
+		void execute() throws MipsException {
+		    writeMem(registers[rs] + imm, size, registers[rt]);
+		    finishLoad();
+		    advancePC();
+		}
+	    };
+	case Mips.BEQ:
+	    return new Simple() {
+		void execute() {
+		    branch(registers[rs] == registers[rt], offset);
+		}
+	    };
+	case Mips.BNE:
+	    return new Simple() {
+		void execute() {
+		    branch(registers[rs] != registers[rt], offset);
+		}
+	    };
+	case Mips.BLEZ:
+	    return new Simple() {
+		void execute() {
+		    branch(registers[rs] <= 0, offset);
+		}
+	    };
+	case Mips.BGTZ:
+	    return new Simple() {
+		void execute() {
+		    branch(registers[rs] > 0, offset);
+		}
+	    };
+	case Mips.BLTZ:
+	    if (Lib.test(Mips.LINK, flags))
+		break;
+	    return new Simple() {
+		void execute() {
+		    branch(registers[rs] < 0, offset);
+		}
+	    };
+	case Mips.BGEZ:
+	    if (Lib.test(Mips.LINK, flags))
+		break;
+	    return new Simple() {
+		void execute() {
+		    branch(registers[rs] >= 0, offset);
+		}
+	    };
+	case Mips.JUMP:
+	    final boolean link = Lib.test(Mips.LINK, flags);
+	    if (format == Mips.JFMT) {
+		return new Simple() {
+		    void execute() {
+			jump(link ? dstReg : 0,
+			     (registers[regNextPC]&0xF0000000) | target);
+		    }
+		};
+	    }
+	    return new Simple() {
+		void execute() {
+		    jump(link ? dstReg : 0, registers[rs]);
+		}
+	    };
+	default:
+	    break;
 	}
 
-	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	return new Interpreted(decoded);
+    }
+
+    /**
+     * Return a superinstruction that executes the specified pair of
+     * instructions, or <tt>null</tt> if the pair is not a recognized idiom.
+     * The recognized idioms are the ones the MIPS cross-compiler emits most:
+     * building a constant with <tt>lui</tt> and <tt>ori</tt>, adjusting the
+     * stack pointer in a function prologue or epilogue, using the result of a
+     * <tt>lw</tt>, and branching on the result of an <tt>slt</tt>.
+     *
+     * @param	first	the first instruction.
+     * @param	second	the instruction that follows it.
+     * @param	firstOp	the handler for the first instruction.
+     * @param	secondOp	the handler for the second instruction.
+     * @return	a superinstruction, or <tt>null</tt>.
+     */
+    private Op fuse(Decoded first, Decoded second, Op firstOp, Op secondOp) {
+	int op1 = first.info.operation, op2 = second.info.operation;
+	
+	if (firstOp instanceof Interpreted || secondOp instanceof Interpreted)
+	    return null;
+
+	// lui rt, hi; ori rt, rt, lo
+	if (op1 == Mips.LUI && op2 == Mips.OR && first.rt != 0 &&
+	    second.info.format == Mips.IFMT &&
+	    second.rs == first.rt && second.rt == first.rt) {
+	    final int rt = first.rt;
+	    final int value = (first.imm << 16) | (second.imm & 0xFFFF);
+	    
+	    return new Pair(firstOp, new Simple() {
+		    void execute() {
+			retire(rt, value);
+		    }
+		});
 	}
 
-	// check if physical page number is out of range
-	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	// slt rd, ...; bne/beq rd, $0, offset
+	if (op1 == Mips.SLT && (op2 == Mips.BEQ || op2 == Mips.BNE) &&
+	    first.dstReg != 0 &&
+	    ((second.rs == first.dstReg && second.rt == 0) ||
+	     (second.rt == first.dstReg && second.rs == 0))) {
+	    return new CompareBranch((Compare) firstOp, op2 == Mips.BNE,
+				     second.imm << 2);
 	}
 
-	// set used and dirty bits as appropriate
-	entry.used = true;
-	if (writing)
-	    entry.dirty = true;
+	// addiu sp, sp, n; followed by a stack access
+	if (isStackAdjust(first) &&
+	    (op2 == Mips.LOAD || op2 == Mips.STORE) && second.rs == regSP)
+	    return new Pair(firstOp, secondOp);
 
-	int paddr = (ppn*pageSize) + offset;
+	// jr ra; addiu sp, sp, n
+	if (op1 == Mips.JUMP && first.info.format == Mips.RFMT &&
+	    !Lib.test(Mips.LINK, first.info.flags) && first.rs == regRA &&
+	    isStackAdjust(second))
+	    return new Pair(firstOp, secondOp);
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
+	// lw rt, ...; followed by an instruction that reads rt
+	if (op1 == Mips.LOAD && first.size == 4 && first.rt != 0 &&
+	    (second.rs == first.rt || second.rt == first.rt))
+	    return new Pair(firstOp, secondOp);
+
+	return null;
+    }
+
+    private static boolean isStackAdjust(Decoded decoded) {
+	return (decoded.info.operation == Mips.ADD &&
+		decoded.info.format == Mips.IFMT &&
+		!Lib.test(Mips.OVERFLOW, decoded.info.flags) &&
+		decoded.rs == regSP && decoded.rt == regSP);
     }
 
     /**
-     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
-     * and return the result.
+     * Complete an instruction that writes a register, as
+     * <tt>Instruction.writeBack()</tt> does.
      *
-     * @param	vaddr	the virtual address to read from.
-     * @param	size	the number of bytes to read (1, 2, or 4).
-     * @return		the value read.
-     * @exception	MipsException	if a translation error occurred.
+     * @param	dstReg	the register to write.
+     * @param	value	the value to write.
      */
-    private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size);
-
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+    private void retire(int dstReg, int value) {
+	finishLoad();
+	if (dstReg != 0)
+	    registers[dstReg] = value;
+	advancePC();
+    }
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tvalue read=0x" +
-			       Lib.toHexString(value, size*2));
-	
-	return value;
+    /**
+     * Complete a conditional branch.
+     *
+     * @param	taken	<tt>true</tt> if the branch is taken.
+     * @param	offset	the byte offset of the target from the delay slot.
+     */
+    private void branch(boolean taken, int offset) {
+	int delaySlot = registers[regNextPC];
+	finishLoad();
+	advancePC(taken ? delaySlot + offset : delaySlot + 4);
     }
-    
+
     /**
-     * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
-     * starting at <i>vaddr</i>.
+     * Complete a jump.
      *
-     * @param	vaddr	the virtual address to write to.
-     * @param	size	the number of bytes to write (1, 2, or 4).
-     * @param	value	the value to store.
-     * @exception	MipsException	if a translation error occurred.
+     * @param	linkReg	the register to receive the return address, or 0.
+     * @param	target	the target of the jump.
      */
-    private void writeMem(int vaddr, int size, int value)
-	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size + ", value=0x"
-			       + Lib.toHexString(value, size*2));
+    private void jump(int linkReg, int target) {
+	int returnAddress = registers[regNextPC] + 4;
+	finishLoad();
+	if (linkReg != 0)
+	    registers[linkReg] = returnAddress;
+	advancePC(target);
+    }
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+    /**
+     * Complete a <tt>mult</tt> or <tt>multu</tt>.
+     *
+     * @param	product	the 64-bit product.
+     */
+    private void multiply(long product) {
+	registers[regLo] = (int) Lib.extract(product, 0, 32);
+	registers[regHi] = (int) Lib.extract(product, 32, 32);
+	finishLoad();
+	advancePC();
     }
 
     /**
@@ -539,8 +2189,18 @@ public final class Processor {
 
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
-    /** Number of TLB entries. */
+    /**
+     * Number of TLB entries. Fixed at 4 unless
+     * <tt>Processor.variableTLB</tt> is set.
+     */
     private int tlbSize = 4;
+    /**
+     * The heads of the TLB's vpn hash chains. Each valid TLB entry is on the
+     * chain selected by the low bits of its vpn, linked through
+     * <tt>tlbNext</tt>. <tt>-1</tt> ends a chain.
+     */
+    private int[] tlbBuckets, tlbNext;
+    private int tlbBucketMask;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,8 +2213,140 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /**
+     * Main memory for user programs, or <tt>null</tt> if it is file-backed.
+     */
     private byte[] mainMemory;
+    /** File-backed main memory, or <tt>null</tt> if it is an array. */
+    private ByteBuffer memoryBuffer;
+    /** Little-endian views of main memory, as halfwords and as words. */
+    private static final VarHandle shortView =
+	MethodHandles.byteArrayViewVarHandle(short[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle intView =
+	MethodHandles.byteArrayViewVarHandle(int[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle shortBufferView =
+	MethodHandles.byteBufferViewVarHandle(short[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle intBufferView =
+	MethodHandles.byteBufferViewVarHandle(int[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page, or <tt>null</tt> if the decode cache is disabled. A page's
+     * entry is discarded whenever that page is written.
+     */
+    private Decoded[][] decodedPages;
+    /**
+     * Translated basic blocks, indexed by physical page and then by the word
+     * where the block starts, or <tt>null</tt> if the threaded engine is not
+     * in use.
+     */
+    private Block[][] blockPages;
+    /**
+     * Pages written by user code while they held translated blocks. They are
+     * interpreted until the kernel reloads them.
+     */
+    private boolean[] interpretOnly;
+
+    /**
+     * A direct-mapped cache of recent translations, indexed by the low bits
+     * of the virtual page number. Each entry holds a tag and the offset of
+     * the page in main memory. Reads and writes have separate entries, so
+     * that the first write to a page still sets its dirty bit.
+     * <tt>null</tt> if disabled.
+     *
+     * <p>
+     * A tag combines the virtual page number with the generation of the
+     * micro-TLB when the entry was filled. Flushing starts a new
+     * generation, and only clears the arrays when the generation wraps
+     * around.
+     */
+    private int[] microReadTag, microReadBase, microWriteTag, microWriteBase;
+    private int microTLBMask;
+    private int microGeneration = 0;
+
+    private static final int pageShift =
+	Integer.numberOfTrailingZeros(pageSize);
+    private static final int microGenerationShift = 32 - pageShift;
+
+    /** <tt>true</tt> if ticks that cannot cause an interrupt are batched. */
+    private boolean batchTicks;
+    /** The number of upcoming ticks known not to make an interrupt due. */
+    private long quietTicks = 0;
+    /** The number of ticks counted by <tt>tick()</tt> but not yet charged. */
+    private long owedTicks = 0;
+    /**
+     * Incremented whenever the kernel gets control or translated blocks are
+     * discarded. A block in progress stops if this changes.
+     */
+    private int blockEpoch = 0;
+
+    /**
+     * Ticks per user instruction, by virtual page, or <tt>null</tt> if
+     * <tt>Processor.profile</tt> is not set.
+     */
+    private HashMap<Integer, ProfilePage> profilePages;
+    /** Loaded executables and their names, for naming profiled sections. */
+    private ArrayList<Coff> profiledExecutables;
+    private ArrayList<String> profiledNames;
+    /** The page of the last profiled instruction. */
+    private ProfilePage profilePage = null;
+    private int profileVPN;
+    /** The first instruction of the current basic block. */
+    private ProfilePage profileBlockPage;
+    private int profileBlockIndex;
+    private int profileLastPC;
+    private boolean profileBlockEnded = true;
+    private boolean profileInDelaySlot = false;
+    /** The number of lines in each part of the profile. */
+    private static final int profileLength = 20;
+
+    /**
+     * The first level instruction and data caches, or <tt>null</tt> if
+     * <tt>Processor.cache</tt> is not set. Both may share a second level.
+     */
+    private Cache instructionCache, dataCache;
+    /** The ticks charged for an access that misses in every cache. */
+    private int memoryLatency;
+    /**
+     * Ticks owed for memory stalls by the instruction being interpreted,
+     * until <tt>runInstrumented()</tt> takes them.
+     */
+    private long stallTicks = 0;
+
+    /**
+     * The number of instructions to fast-forward through between
+     * measurements, or 0 if <tt>Processor.sampleFastForward</tt> is not set,
+     * and the number to warm the caches up with and then measure.
+     */
+    private long sampleFastForward, sampleWarmup, sampleWindow;
+    /** The caches, kept here while fast-forwarding switches them off. */
+    private Cache sampledInstructionCache, sampledDataCache;
+    private int samplePhase = phaseFastForward;
+    /** The instruction count at which the current phase ends. */
+    private long samplePhaseEnd;
+    /** The cache counters and instruction count when measuring began. */
+    private long[] sampleStart;
+    private long sampleStartInstructions;
+    /** The cache counters changed by all the measurement windows. */
+    private long[] sampleCounters = new long[4];
+
+    private static final int phaseFastForward = 0;
+    private static final int phaseWarmup = 1;
+    private static final int phaseMeasure = 2;
+
+    /** The file to write a checkpoint to at the next tick, if any. */
+    private String checkpointFileName = null;
+    /** A checkpoint to restore when a user program starts, if any. */
+    private Checkpoint restorePoint = null;
+    /**
+     * The first page table the kernel set, and whether it has set any other
+     * since.
+     */
+    private TranslationEntry[] firstPageTable = null;
+    private boolean multiplePageTables = false;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,21 +2358,49 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    blockEpoch++;
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Return this processor's exception, set up to report the specified
+     * cause. The same exception object is thrown every time, because only one
+     * thread executes user instructions at a time, and <tt>handle()</tt> is
+     * finished with the cause before the kernel can switch threads.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException mipsException(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    this.cause = cause;
-	}
+	exception.cause = cause;
+	exception.hasBadVAddr = false;
+	return exception;
+    }
+
+    /**
+     * Return this processor's exception, set up to report the specified
+     * cause and bad virtual address.
+     *
+     * @param	cause	the cause of the exception.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException mipsException(int cause, int badVAddr) {
+	mipsException(cause);
+
+	exception.hasBadVAddr = true;
+	exception.badVAddr = badVAddr;
+	return exception;
+    }
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+    private MipsException exception = new MipsException();
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+    private class MipsException extends Exception {
+	public MipsException() {
+	    // a single instance is reused, so don't record a stack trace
+	    super(null, null, false, false);
 	}
 
 	public void handle() {
@@ -593,6 +2413,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    blockEpoch++;
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -614,7 +2435,16 @@ public final class Processor {
 	    decode();
 	    execute();
 	    writeBack();
-	}	
+	}
+
+	public void run(Decoded decoded) throws MipsException {
+	    this.decoded = decoded;
+	    value = decoded.value;
+	    
+	    decode();
+	    execute();
+	    writeBack();
+	}
 
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
@@ -626,63 +2456,45 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (decodedPages != null && !Lib.test(dbgProcessor)) {
+		int paddr = translate(registers[regPC], 4, false);
+		if (instructionCache != null)
+		    accessCache(instructionCache, paddr, false);
+		
+		decoded = fetchDecoded(paddr);
+		value = decoded.value;
+	    }
+	    else {
+		value = readMem(registers[regPC], 4, instructionCache);
+		decoded = scratch;
+		decoded.decode(value);
+	    }
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.info.operation;
+	    name = decoded.info.name;
+	    format = decoded.info.format;
+	    flags = decoded.info.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -862,15 +2674,13 @@ public final class Processor {
 		registers[regHi] = (int) Lib.extract(dst, 32, 32);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		if (src2 == 0)
+		    throw mipsException(exceptionOverflow);
+		
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    throw mipsException(exceptionOverflow);
 		break;
 
 	    case Mips.SLL:
@@ -939,7 +2749,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw mipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +2819,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw mipsException(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +2829,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw mipsException(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1051,6 +2861,11 @@ public final class Processor {
 		System.out.print("\n");
 	}
     
+	// the decoded form of the current instruction
+	Decoded decoded;
+	// where instructions are decoded when the decode cache is disabled
+	Decoded scratch = new Decoded();
+
 	// state used to execute a single instruction
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
@@ -1063,6 +2878,198 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The fields of an instruction word that do not depend on register
+     * contents. Instances are kept in the decode cache so that an instruction
+     * executed repeatedly only has to be decoded once.
+     */
+    private static class Decoded {
+	void decode(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, info.flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, info.flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, info.flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, info.flags))
+		dstReg = regRA;
+	    else if (info.format == Mips.IFMT)
+		dstReg = rt;
+	    else if (info.format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int size, dstReg;
+	Mips info;
+    }
+
+    /** A translated basic block. */
+    private static class Block {
+	Op[] ops;
+    }
+
+    /**
+     * Profile counts for one virtual page, indexed by word within the page.
+     * <tt>blockTicks</tt> and <tt>entries</tt> are only counted at the first
+     * instruction of each basic block.
+     */
+    private static class ProfilePage {
+	static final int size = pageSize / 4;
+	
+	long[] ticks = new long[size];
+	long[] blockTicks = new long[size];
+	long[] entries = new long[size];
+    }
+
+    /**
+     * A handler for one or more consecutive instructions in a basic block.
+     */
+    private abstract class Op {
+	/**
+	 * Execute the instructions, leaving the last one to be charged a
+	 * tick by the caller.
+	 *
+	 * @param	inst	the instruction state to interpret with, if
+	 *			needed.
+	 * @return	<tt>false</tt> if the kernel got control partway
+	 *		through, in which case every instruction executed has
+	 *		already been charged and the block must be abandoned.
+	 */
+	abstract boolean run(Instruction inst) throws MipsException;
+
+	/** The number of instructions this handler executes. */
+	int length = 1;
+    }
+
+    /** Executes a single instruction through the interpreter. */
+    private class Interpreted extends Op {
+	Interpreted(Decoded decoded) {
+	    this.decoded = decoded;
+	}
+
+	boolean run(Instruction inst) throws MipsException {
+	    inst.run(decoded);
+	    return true;
+	}
+
+	private Decoded decoded;
+    }
+
+    /** A specialized handler for a single instruction. */
+    private abstract class Simple extends Op {
+	boolean run(Instruction inst) throws MipsException {
+	    execute();
+	    return true;
+	}
+
+	abstract void execute() throws MipsException;
+    }
+
+    /** A handler for <tt>slt</tt>, <tt>sltu</tt>, <tt>slti</tt> and
+     * <tt>sltiu</tt>. */
+    private abstract class Compare extends Simple {
+	Compare(int dstReg) {
+	    this.dstReg = dstReg;
+	}
+
+	void execute() {
+	    retire(dstReg, compare());
+	}
+
+	abstract int compare();
+
+	int dstReg;
+    }
+
+    /**
+     * Executes two instructions, charging a tick in between exactly as if
+     * they were separate.
+     */
+    private class Pair extends Op {
+	Pair(Op first, Op second) {
+	    this.first = first;
+	    this.second = second;
+	    length = 2;
+	}
+
+	boolean run(Instruction inst) throws MipsException {
+	    int epoch = blockEpoch;
+	    
+	    first.run(inst);
+	    tick();
+
+	    if (epoch != blockEpoch)
+		return false;
+
+	    return second.run(inst);
+	}
+
+	private Op first, second;
+    }
+
+    /**
+     * An <tt>slt</tt> followed by a <tt>beq</tt> or <tt>bne</tt> that
+     * compares its result with zero. The branch reuses the comparison rather
+     * than reading it back from the register file.
+     */
+    private class CompareBranch extends Op {
+	CompareBranch(Compare compare, boolean branchIfSet, int offset) {
+	    this.compare = compare;
+	    this.branchIfSet = branchIfSet;
+	    this.offset = offset;
+	    length = 2;
+	}
+
+	boolean run(Instruction inst) {
+	    int epoch = blockEpoch;
+
+	    int result = compare.compare();
+	    retire(compare.dstReg, result);
+	    tick();
+
+	    if (epoch != blockEpoch)
+		return false;
+
+	    branch((result != 0) == branchIfSet, offset);
+	    return true;
+	}
+
+	private Compare compare;
+	private boolean branchIfSet;
+	private int offset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
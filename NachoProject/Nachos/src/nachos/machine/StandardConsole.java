@@ -89,7 +89,19 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
+	// a replay takes input from its recording instead of the host
+	EventLog log = Machine.eventLog();
+	int c;
+	if (log != null && log.isReplaying()) {
+	    c = log.replayConsole();
+	}
+	else {
+	    c = in();
+	    if (log != null)
+		log.recordConsole(c);
+	}
+
+	incomingKey = translateCharacter(c);
 	if (incomingKey == -1) {
 	    scheduleReceiveInterrupt();
 	}
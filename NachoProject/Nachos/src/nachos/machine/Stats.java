@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -20,17 +23,73 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + (idleTicks > 0 ? ", idle " + idleTicks : ""));
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBHits > 0 || numTLBMisses > 0) {
+	    System.out.println("TLB: hits " + numTLBHits
+			       + ", misses " + numTLBMisses
+			       + ", evictions " + numTLBEvictions);
+	}
+	if (numL1IHits > 0 || numL1IMisses > 0) {
+	    System.out.println("Cache: L1I hits " + numL1IHits
+			       + ", misses " + numL1IMisses
+			       + ", L1D hits " + numL1DHits
+			       + ", misses " + numL1DMisses
+			       + ", L2 hits " + numL2Hits
+			       + ", misses " + numL2Misses
+			       + ", stall ticks " + numCacheStallTicks);
+	}
+	if (numSampledInstructions > 0) {
+	    System.out.println("Sampling: measured " + numSampledInstructions
+			       + " instructions, estimated user ticks "
+			       + estimatedUserTicks
+			       + ", L1I misses " + estimatedL1IMisses
+			       + ", L1D misses " + estimatedL1DMisses
+			       + ", L2 misses " + estimatedL2Misses
+			       + ", stall ticks " + estimatedCacheStallTicks);
+	}
+	if (numCarrierThreadsReused > 0) {
+	    System.out.println("Threads: carriers created "
+			       + numCarrierThreadsCreated
+			       + ", reused " + numCarrierThreadsReused);
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
 
+    /**
+     * Return every counter in this object as <i>name</i>=<i>value</i> pairs
+     * separated by spaces, for tools that collect statistics from many runs.
+     *
+     * @return	the counters in this object.
+     */
+    public String toString() {
+	StringBuffer buffer = new StringBuffer();
+
+	Field[] fields = Stats.class.getFields();
+	for (int i=0; i<fields.length; i++) {
+	    if (Modifier.isStatic(fields[i].getModifiers()))
+		continue;
+
+	    try {
+		if (buffer.length() > 0)
+		    buffer.append(' ');
+		buffer.append(fields[i].getName() + "=" + fields[i].get(this));
+	    }
+	    catch (IllegalAccessException e) {
+		Lib.assertNotReached();
+	    }
+	}
+
+	return buffer.toString();
+    }
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -44,6 +103,12 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The amount of simulated time skipped by the idle thread, with
+     * <tt>Interrupt.tickless</tt> set. Included in <tt>totalTicks</tt>, but
+     * in neither <tt>kernelTicks</tt> nor <tt>userTicks</tt>.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,6 +122,40 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of translations satisfied by the TLB. */
+    public long numTLBHits = 0;
+    /** The total number of valid TLB entries that have been overwritten. */
+    public int numTLBEvictions = 0;
+    /** The total number of user accesses to the L1 instruction cache. */
+    public long numL1IHits = 0, numL1IMisses = 0;
+    /** The total number of user accesses to the L1 data cache. */
+    public long numL1DHits = 0, numL1DMisses = 0;
+    /** The total number of L1 misses that went to the L2 cache. */
+    public long numL2Hits = 0, numL2Misses = 0;
+    /** The total number of user ticks spent waiting on the caches. */
+    public long numCacheStallTicks = 0;
+    /**
+     * The number of user instructions measured in detail, when
+     * <tt>Processor.sampleFastForward</tt> is set.
+     */
+    public long numSampledInstructions = 0;
+    /**
+     * Estimates for the whole run, extrapolated from the instructions
+     * measured in detail when <tt>Processor.sampleFastForward</tt> is set.
+     */
+    public long estimatedUserTicks = 0, estimatedCacheStallTicks = 0;
+    /** Estimated misses in each cache, extrapolated in the same way. */
+    public long estimatedL1IMisses = 0, estimatedL1DMisses = 0,
+	estimatedL2Misses = 0;
+    /** The number of context switches between different TCBs. */
+    public long numContextSwitches = 0;
+    /** The number of Java threads created to run TCBs. */
+    public long numCarrierThreadsCreated = 0;
+    /**
+     * The number of TCBs started on the Java thread of a destroyed TCB,
+     * instead of a new one.
+     */
+    public long numCarrierThreadsReused = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -5,7 +5,11 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +18,26 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * With <tt>TCB.virtualThreads</tt> set, every TCB but the first runs on a
+ * virtual thread, if the JVM has them, so that a kernel can create tens of
+ * thousands of threads; <tt>TCB.maxThreads</tt> sets how many may exist at
+ * once. Only one TCB still runs at a time. This is experimental: it has
+ * only been built and run on JVMs without virtual threads, where TCBs fall
+ * back to platform threads and the usual limit.
+ *
+ * <p>
+ * Control passes from one TCB to the next through a single word naming the
+ * TCB that ought to run. A TCB that gives up control stores its successor
+ * there, unparks it and parks itself, so a context switch costs one unpark
+ * and one park. With <tt>TCB.handoff</tt> set to <tt>monitor</tt>, TCBs wait
+ * on their own monitors instead, as they originally did.
+ *
+ * <p>
+ * The Java thread of a destroyed TCB is kept, up to
+ * <tt>TCB.carrierPoolSize</tt> of them, and reused for the next TCB to start,
+ * rather than creating a new one each time.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +64,72 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	// a hosted machine finds its threads by thread group, and virtual
+	// threads all belong to the same one
+	if (Config.getBoolean("TCB.virtualThreads", false) &&
+	    MachineContext.current() == null)
+	    findVirtualThreads();
+
+	// without virtual threads, every TCB is a host thread, so the limit
+	// stays low however the option was set
+	boolean virtual = (unstarted != null);
+
+	// a virtual thread waiting on a monitor pins its carrier thread
+	String handoff = Config.getString("TCB.handoff", "park");
+	Lib.assertTrue(handoff.equals("park") || handoff.equals("monitor"),
+		       "unknown TCB.handoff: " + handoff);
+	parking = virtual || handoff.equals("park");
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					virtual ? maxVirtualThreads : maxThreads);
+	Lib.assertTrue(threadLimit > 0, "TCB.maxThreads must be positive");
+
+	carrierPoolSize = Config.getInteger("TCB.carrierPoolSize", 16);
+	Lib.assertTrue(carrierPoolSize >= 0,
+		       "TCB.carrierPoolSize must not be negative");
+	idleCarriers =
+	    new LinkedBlockingDeque<Carrier>(Math.max(carrierPoolSize, 1));
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted()</tt>, which only exists on
+     * Java 21 and later, so that Nachos still builds and runs on older JVMs.
+     * Without it, TCBs use platform threads.
+     */
+    private static void findVirtualThreads() {
+	try {
+	    virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    unstarted = Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (ReflectiveOperationException e) {
+	    System.out.print(" (no virtual threads)");
+	    virtualBuilder = null;
+	    unstarted = null;
+	}
+    }
+
+    /**
+     * Create the Java thread for a TCB: a virtual thread if
+     * <tt>TCB.virtualThreads</tt> is set and the JVM supports them, and a
+     * platform thread otherwise. Must be called with privilege.
+     */
+    private static Thread newThread(Runnable target) {
+	if (unstarted == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) unstarted.invoke(virtualBuilder, target);
+	}
+	catch (InvocationTargetException e) {
+	    Lib.assertNotReached("unable to create virtual thread: " +
+				 e.getCause());
+	}
+	catch (IllegalAccessException e) {
+	    Lib.assertNotReached("unable to create virtual thread: " + e);
+	}
+	return null;
     }
     
     /**
@@ -66,7 +156,8 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit,
+		       "too many threads; raise TCB.maxThreads");
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +177,39 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * We reuse the thread of a destroyed TCB if one is idle, and
+	     * otherwise make a new one. Creating Java threads is a privileged
+	     * operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
+	    Carrier carrier = idleCarriers.pollFirst();
+
+	    if (carrier != null) {
+		privilege.stats.numCarrierThreadsReused++;
+	    }
+	    else {
+		final Carrier newCarrier = new Carrier();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    newCarrier.thread = newThread(newCarrier);
+			}
+		    });
+		carrier = newCarrier;
+		privilege.stats.numCarrierThreadsCreated++;
+	    }
+
+	    javaThread = carrier.thread;
+	    this.carrier = carrier;
+
+	    /* The Java thread isn't yet running this TCB, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off the
+	     * current TCB, handing this TCB to the Java thread, and waiting for
+	     * it to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
-	    currentTCB.running = false;
+	    runningTCB = null;
 	    
-	    this.javaThread.start();
+	    carrier.carry(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -149,14 +253,14 @@ public final class TCB {
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
 	 * or about any TCB's state. Therefore, before waking up the next
-	 * thread, we must latch the value of currentTCB, and set its running
-	 * flag to false (so that, in case we get interrupted before we call
-	 * yield(), the interrupt will set the running flag and yield() won't
-	 * block).
+	 * thread, we must latch the value of currentTCB. Waking the next
+	 * thread names it in runningTCB, which also tells the previous one to
+	 * wait (and in case we get interrupted before we call yield(), the
+	 * interrupt will name it again and yield() won't block).
 	 */
 
 	TCB previous = currentTCB;
-	previous.running = false;
+	privilege.stats.numContextSwitches++;
 	
 	this.interrupt();
 	previous.yield();
@@ -181,7 +285,6 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
-	currentTCB.running = false;
 
 	this.interrupt();
 	currentTCB.waitForInterrupt();
@@ -196,6 +299,15 @@ public final class TCB {
 	privilege.exit(0);
     }
 
+    /**
+     * Return the number of context switches between different TCBs so far.
+     *
+     * @return	the number of context switches.
+     */
+    public static long getNumContextSwitches() {
+	return privilege.stats.numContextSwitches;
+    }
+
     /**
      * Test if the current JVM thread belongs to a Nachos TCB. The AWT event
      * dispatcher is an example of a non-Nachos thread.
@@ -213,10 +325,10 @@ public final class TCB {
 
 	if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
-	     * to context switch to us. We leave the running flag false so that
-	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
-	     * wait to get woken up by contextSwitch() or destroy().
+	     * to context switch to us. If a context switch to us happens before
+	     * we go to sleep, it names us in runningTCB, so we'll still run.
+	     * All we have to do is wake up the current TCB and then wait to get
+	     * woken up by contextSwitch() or destroy().
 	     */
 	    
 	    currentTCB.interrupt();
@@ -228,7 +340,7 @@ public final class TCB {
 	     */
 	    
 	    currentTCB = this;
-	    running = true;
+	    runningTCB = this;
 	}
 
 	try {
@@ -238,6 +350,10 @@ public final class TCB {
 	    Lib.assertNotReached();
 	}
 	catch (ThreadDeath e) {
+	    // a hosted machine that has exited just lets its threads end
+	    if (MachineContext.isStopping())
+		return;
+	    
 	    // make sure this TCB is being destroyed properly
 	    if (!done) {
 		System.out.print("\nTCB terminated improperly!\n");
@@ -272,6 +388,11 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    // offer the carrier before waking the TCB destroying us, so that it
+	    // can already reuse it for the next TCB it starts
+	    if (carrier != null)
+		carrier.release();
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -280,29 +401,57 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+     * Waits until <tt>runningTCB</tt> names this TCB, parked or on the
+     * monitor bound to this TCB. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parking) {
+	    // park can return spuriously, or because the thread was
+	    // interrupted
+	    while (runningTCB != this) {
+		LockSupport.park(this);
+
+		// a hosted machine interrupts its threads when it exits
+		if (Thread.interrupted() && MachineContext.isStopping())
+		    throw new ThreadDeath();
+	    }
+	    return;
+	}
+
+	synchronized (this) {
+	    while (runningTCB != this) {
+		try { wait(); }
+		catch (InterruptedException e) {
+		    // a hosted machine interrupts its threads when it exits
+		    if (MachineContext.isStopping())
+			throw new ThreadDeath();
+		}
+	    }
 	}
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
+     * Wake up this TCB by naming it in <tt>runningTCB</tt> and unparking its
+     * thread, or signalling the monitor bound to it. Used in the ping-pong
+     * process of
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (parking) {
+	    runningTCB = this;
+	    LockSupport.unpark(javaThread);
+	    return;
+	}
+
+	synchronized (this) {
+	    runningTCB = this;
+	    notify();
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -328,9 +477,32 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> says otherwise.
      */
     public static final int maxThreads = 250;
+    /** The default limit when TCBs run on virtual threads. */
+    private static final int maxVirtualThreads = 100000;
+    /** The limit in effect. */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * <tt>true</tt> unless <tt>TCB.handoff</tt> is <tt>monitor</tt>, so TCBs
+     * hand off with <tt>LockSupport</tt> instead of monitors.
+     */
+    private static boolean parking = false;
+    /**
+     * The virtual thread builder and its <tt>unstarted()</tt> method, or
+     * <tt>null</tt> if TCBs use platform threads.
+     */
+    private static Object virtualBuilder = null;
+    private static Method unstarted = null;
+
+    /**
+     * The carriers that have finished a TCB and are waiting for another, most
+     * recently finished first. Holds up to <tt>TCB.carrierPoolSize</tt>.
+     */
+    private static LinkedBlockingDeque<Carrier> idleCarriers;
+    private static int carrierPoolSize;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -347,6 +519,18 @@ public final class TCB {
      */
     private static TCB currentTCB = null;
 
+    /**
+     * The TCB whose Java thread ought to be running, or <tt>null</tt> while
+     * <tt>start(Runnable)</tt> waits for a new thread to get going. This is
+     * an entirely different condition from membership in
+     * <tt>runningThreads</tt>, which contains all TCB objects that have
+     * started and have not terminated. When starting or destroying a TCB,
+     * this is temporarily a TCB other than the current TCB. Only the thread
+     * it names may change it, except that a TCB being destroyed hands it
+     * back to the TCB destroying it.
+     */
+    private static volatile TCB runningTCB = null;
+
     /**
      * A vector containing all <i>running</i> TCB objects. It is initialized to
      * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
@@ -354,7 +538,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>TCB.maxThreads</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -379,16 +563,6 @@ public final class TCB {
      */
     private Thread javaThread = null;
 
-    /**
-     * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
-     * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
-     * when the associated Java thread ought to run ASAP. When starting or
-     * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
-     */
-    private boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +574,68 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    /** The carrier running this TCB, or <tt>null</tt> for the first TCB. */
+    private Carrier carrier = null;
+
+    /**
+     * A Java thread that runs TCBs one after another. When the TCB it is
+     * running is destroyed, it waits in <tt>idleCarriers</tt> for
+     * <tt>start(Runnable)</tt> to hand it another, unless the pool is full,
+     * in which case it ends.
+     */
+    private static class Carrier implements Runnable {
+	public void run() {
+	    while (true) {
+		TCB tcb = next;
+		next = null;
+
+		released = false;
+		tcb.threadroot();
+
+		// a hosted machine that has exited just lets its threads end
+		if (MachineContext.isStopping() || !released)
+		    return;
+
+		while (next == null) {
+		    LockSupport.park(this);
+
+		    if (Thread.interrupted() && MachineContext.isStopping())
+			return;
+		}
+	    }
+	}
+
+	/**
+	 * Add this carrier to the pool, if it is not full, once the TCB it is
+	 * running has been destroyed.
+	 */
+	void release() {
+	    released = carrierPoolSize > 0 && idleCarriers.offerFirst(this);
+	}
+
+	/**
+	 * Run the specified TCB on this carrier, starting its thread if it is
+	 * new. Called by <tt>start(Runnable)</tt>.
+	 */
+	void carry(TCB tcb) {
+	    next = tcb;
+
+	    if (started) {
+		LockSupport.unpark(thread);
+	    }
+	    else {
+		started = true;
+		thread.start();
+	    }
+	}
+
+	Thread thread;
+	/** The TCB this carrier should run next. */
+	private volatile TCB next = null;
+	private boolean started = false;
+	/** <tt>true</tt> if this carrier joined the pool. */
+	private boolean released;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
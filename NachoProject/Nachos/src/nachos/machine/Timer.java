@@ -63,6 +63,9 @@ public final class Timer {
 	scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
+	if (Machine.eventLog() != null)
+	    Machine.eventLog().timerInterrupt();
+
 	lastTimerInterrupt = getTime();
 
 	if (handler != null)
@@ -63,7 +63,7 @@ public class NachosSecurityManager extends SecurityManager {
 	    return NachosSecurityManager.this.doPrivileged(action);
 	}
 
-	public Object doPrivileged(PrivilegedExceptionAction action)
+	public <T> T doPrivileged(PrivilegedExceptionAction<T> action)
 	    throws PrivilegedActionException {
 	    return NachosSecurityManager.this.doPrivileged(action);
 	}
@@ -110,8 +110,10 @@ public class NachosSecurityManager extends SecurityManager {
     }
 
     private void exit(int exitStatus) {
-	forcePrivilege();
-	System.exit(exitStatus);
+	if (MachineContext.current() == null)
+	    forcePrivilege();
+
+	MachineContext.exit(exitStatus);
     }
 
     private boolean isPrivileged() {
@@ -141,9 +143,9 @@ public class NachosSecurityManager extends SecurityManager {
 	return result;
     }
 
-    private Object doPrivileged(PrivilegedExceptionAction action)
+    private <T> T doPrivileged(PrivilegedExceptionAction<T> action)
 	throws PrivilegedActionException {
-	Object result = null;
+	T result = null;
 	enablePrivilege();
 	try {
 	    result = action.run();
@@ -71,7 +71,7 @@ public abstract class Privilege {
      * @param	action	the action to perform.
      * @return	the return value of the action.
      */
-    public abstract Object doPrivileged(PrivilegedExceptionAction action)
+    public abstract <T> T doPrivileged(PrivilegedExceptionAction<T> action)
 	throws PrivilegedActionException;
 
     /**
@@ -158,6 +158,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user mode ticks that can elapse before an
+	 * interrupt handler becomes due. This is the number of consecutive
+	 * calls to <tt>tick(false)</tt> that would not invoke a handler, or 0
+	 * if every tick must go through <tt>tick()</tt>.
+	 *
+	 * @return	the number of ticks that can be charged with
+	 *		<tt>tickUser()</tt>.
+	 */
+	public long quietUserTicks();
+
+	/**
+	 * Advance the simulated time by several user mode ticks at once. This
+	 * has the same effect as calling <tt>tick(false)</tt>
+	 * <i>numTicks</i> times, which must not be more than
+	 * <tt>quietUserTicks()</tt> returned before any of them.
+	 *
+	 * @param	numTicks	the number of user mode ticks to charge.
+	 */
+	public void tickUser(long numTicks);
     }
 
     /**
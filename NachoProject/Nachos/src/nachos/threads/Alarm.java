@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.PriorityQueue;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -22,11 +24,17 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every
+     * sleeping thread whose time has come, and causes the current thread to
+     * yield, forcing a context switch if there is another thread that should
+     * be run.
      */
     public void timerInterrupt() {
+	long time = Machine.timer().getTime();
+
+	while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time)
+	    sleepers.poll().thread.ready();
+
 	KThread.currentThread().yield();
     }
 
@@ -45,9 +53,100 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long wakeTime = Machine.timer().getTime() + x;
+	sleepers.add(new Sleeper(wakeTime, numSleepers++,
+				 KThread.currentThread()));
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Sleep the way <tt>waitUntil()</tt> used to, by yielding until the
+     * time has passed, for comparison in the benchmark.
+     */
+    private static void busyWaitUntil(long x) {
 	long wakeTime = Machine.timer().getTime() + x;
 	while (wakeTime > Machine.timer().getTime())
 	    KThread.yield();
     }
+
+    /**
+     * If <tt>Alarm.benchmarkSleepers</tt> is set, start that many threads
+     * that each sleep five times for between 1000 and 5000 ticks, first with
+     * <tt>waitUntil()</tt> and then by yielding until the time has passed,
+     * and print the context switches and real time each approach took.
+     */
+    public static void selfTest() {
+	int numSleepers = Config.getInteger("Alarm.benchmarkSleepers", 0);
+	if (numSleepers > 0) {
+	    benchmark(numSleepers, false);
+	    benchmark(numSleepers, true);
+	}
+    }
+
+    private static void benchmark(int numSleepers, final boolean busy) {
+	final Semaphore finished = new Semaphore(0);
+
+	long startSwitches = TCB.getNumContextSwitches();
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	for (int i=0; i<numSleepers; i++) {
+	    final long delay = 1000 + (i * 4001L / numSleepers);
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<5; j++) {
+			    if (busy)
+				busyWaitUntil(delay);
+			    else
+				ThreadedKernel.alarm.waitUntil(delay);
+			}
+			finished.V();
+		    }
+		}).setName("sleeper").fork();
+	}
+
+	for (int i=0; i<numSleepers; i++)
+	    finished.P();
+
+	System.out.println("Alarm benchmark (" +
+			   (busy ? "busy waiting" : "sleep queue") + "): " +
+			   numSleepers + " sleepers, " +
+			   (TCB.getNumContextSwitches() - startSwitches) +
+			   " context switches, " +
+			   (Machine.timer().getTime() - startTicks) + " ticks, " +
+			   (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+
+    /** A thread waiting in <tt>waitUntil()</tt>. */
+    private static class Sleeper implements Comparable<Sleeper> {
+	Sleeper(long wakeTime, long id, KThread thread) {
+	    this.wakeTime = wakeTime;
+	    this.id = id;
+	    this.thread = thread;
+	}
+
+	public int compareTo(Sleeper other) {
+	    if (wakeTime != other.wakeTime)
+		return (wakeTime < other.wakeTime) ? -1 : 1;
+	    else
+		return Long.compare(id, other.id);
+	}
+
+	long wakeTime;
+	/** Breaks ties, so threads due at the same time wake in order. */
+	long id;
+	KThread thread;
+    }
+
+    /** The sleeping threads, the one due to wake first at the head. */
+    private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+    private long numSleepers = 0;
 }
@@ -292,7 +292,12 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -405,6 +410,44 @@ public class KThread {
 	
 	new KThread(new PingTest(1)).setName("forked thread").fork();
 	new PingTest(0).run();
+
+	int numYields = Config.getInteger("KThread.benchmarkYields", 0);
+	if (numYields > 0)
+	    benchmark(numYields);
+    }
+
+    /**
+     * Measure how quickly two threads can hand the CPU back and forth, with
+     * each yielding the specified number of times, and print the number of
+     * context switches per second of real time. Runs if
+     * <tt>KThread.benchmarkYields</tt> is set.
+     */
+    private static void benchmark(final int numYields) {
+	final Semaphore finished = new Semaphore(0);
+
+	KThread ponger = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<numYields; i++)
+			KThread.yield();
+		    finished.V();
+		}
+	    }).setName("benchmark thread");
+
+	long startTime = System.nanoTime();
+
+	ponger.fork();
+	for (int i=0; i<numYields; i++)
+	    KThread.yield();
+	finished.P();
+
+	long nanos = System.nanoTime() - startTime;
+	// with two threads ready, every yield switches to the other one
+	long switches = 2L * numYields;
+
+	System.out.println("KThread benchmark: " + switches +
+			   " context switches in " + (nanos/1000000) + " ms, " +
+			   Math.round(switches * 1e9 / nanos) + " per second (" +
+			   Config.getString("TCB.handoff", "park") + " handoff)");
     }
 
     private static final char dbgThread = 't';
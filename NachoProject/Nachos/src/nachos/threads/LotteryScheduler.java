@@ -32,7 +32,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +42,482 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).getTickets();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getLotteryState(thread).getEffectiveTickets(),
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		       priority <= ticketsMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketsMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketsMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Test this scheduler. If the kernel uses a lottery scheduler, measure
+     * the cost of a scheduling decision with
+     * <tt>LotteryScheduler.benchmarkThreads</tt> threads waiting, and how
+     * fairly the processor is shared over
+     * <tt>LotteryScheduler.fairnessTicks</tt> ticks, if these are set.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof LotteryScheduler))
+	    return;
+
+	int numThreads = Config.getInteger("LotteryScheduler.benchmarkThreads",
+					   0);
+	if (numThreads > 0)
+	    benchmark(numThreads);
+
+	int ticks = Config.getInteger("LotteryScheduler.fairnessTicks", 0);
+	if (ticks > 0)
+	    fairness(ticks);
+    }
+
+    /**
+     * Time the drawing of a winner from a queue of 10, 100, and so on up to
+     * the specified number of threads holding between 1 and 100 tickets, with
+     * each winner put straight back in the queue.
+     */
+    private static void benchmark(int maxThreads) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int numThreads=10; ; numThreads*=10) {
+	    numThreads = Math.min(numThreads, maxThreads);
+
+	    ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+	    for (int i=0; i<numThreads; i++) {
+		KThread thread = new KThread().setName("ticket holder");
+		ThreadedKernel.scheduler.setPriority(thread, 1 + Lib.random(100));
+		queue.waitForAccess(thread);
+	    }
+
+	    long startTime = System.nanoTime();
+	    for (int i=0; i<numDraws; i++)
+		queue.waitForAccess(queue.nextThread());
+	    long nanos = System.nanoTime() - startTime;
+
+	    System.out.println("LotteryScheduler benchmark: " + numThreads +
+			       " threads, " + (nanos / numDraws) +
+			       " ns per decision");
+
+	    if (numThreads == maxThreads)
+		break;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Run threads holding 1, 2, 3 and 4 tickets, each yielding as often as
+     * it can for the specified number of ticks, and compare the share of
+     * the processor each received with its share of the tickets.
+     */
+    private static void fairness(int ticks) {
+	final int numThreads = 4;
+	final long[] runs = new long[numThreads];
+	final long endTime = Machine.timer().getTime() + ticks;
+	final Semaphore finished = new Semaphore(0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<numThreads; i++) {
+	    final int which = i;
+
+	    KThread thread = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < endTime) {
+			    runs[which]++;
+			    KThread.yield();
+			}
+			finished.V();
+		    }
+		}).setName("lottery " + (i+1));
+
+	    ThreadedKernel.scheduler.setPriority(thread, i+1);
+	    thread.fork();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<numThreads; i++)
+	    finished.P();
+
+	long totalRuns = 0;
+	for (int i=0; i<numThreads; i++)
+	    totalRuns += runs[i];
+
+	String shares = "";
+	for (int i=0; i<numThreads; i++) {
+	    shares += ", " + (i+1) + " tickets " +
+		Math.round(runs[i] * 1000.0 / totalRuns) / 10.0 + "% (expected " +
+		(i+1) * 10 + "%)";
+	}
+
+	System.out.println("LotteryScheduler fairness over " + ticks +
+			   " ticks: " + totalRuns + " runs" + shares);
+    }
+
+    /**
+     * The least number of tickets a thread can hold.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The most tickets a thread can hold.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    private static final int numDraws = 100000;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+     * so that adding a thread, removing one, changing its tickets and
+     * finding the holder of the winning ticket all take time logarithmic in
+     * the number of slots.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = pickNextThread();
+	    if (state == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(state);
+	    state.acquire(this);
+
+	    return state.thread;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, without removing the
+	 * winner.
+	 *
+	 * @return	the holder of the winning ticket, or <tt>null</tt> if no
+	 *		threads are waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (totalTickets == 0)
+		return null;
+
+	    long ticket = Math.min((long) (Lib.random() * totalTickets),
+				   totalTickets - 1);
+
+	    // find the first slot whose running total exceeds the ticket
+	    int index = 0;
+	    for (int step=Integer.highestOneBit(slots.length); step>0;
+		 step>>=1) {
+		if (index+step <= slots.length && tree[index+step] <= ticket) {
+		    index += step;
+		    ticket -= tree[index];
+		}
+	    }
+
+	    return slots[index];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<slots.length; i++) {
+		if (slots[i] != null) {
+		    System.out.print(" " + slots[i].thread + "(" +
+				     slots[i].effectiveTickets + ")");
+		}
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Give a thread a free slot, making more room if there is none.
+	 */
+	void add(LotteryState state) {
+	    if (numFree == 0)
+		grow();
+
+	    int slot = free[--numFree];
+	    slots[slot] = state;
+	    state.waitQueue = this;
+	    state.slot = slot;
+
+	    change(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Take a waiting thread out of its slot.
+	 */
+	void remove(LotteryState state) {
+	    Lib.assertTrue(state.waitQueue == this);
+
+	    int slot = state.slot;
+	    slots[slot] = null;
+	    free[numFree++] = slot;
+	    state.waitQueue = null;
+
+	    change(slot, -state.effectiveTickets);
+	}
+
+	/**
+	 * Add to the tickets of the thread in the specified slot, and pass the
+	 * change on to the owner.
+	 */
+	void change(int slot, long delta) {
+	    if (delta == 0)
+		return;
+
+	    for (int i=slot+1; i<=slots.length; i+=i&-i)
+		tree[i] += delta;
+
+	    totalTickets += delta;
+
+	    if (transferPriority && owner != null)
+		owner.donate(delta);
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, moving the
+	 * tickets of the waiting threads from the previous owner to it.
+	 */
+	void setOwner(LotteryState state) {
+	    if (!transferPriority || owner == state)
+		return;
+
+	    if (owner != null)
+		owner.donate(-totalTickets);
+
+	    owner = state;
+
+	    if (owner != null)
+		owner.donate(totalTickets);
+	}
+
+	/**
+	 * Double the number of slots and rebuild the tree, in linear time.
+	 */
+	private void grow() {
+	    int size = Math.max(2*slots.length, 8);
+
+	    LotteryState[] oldSlots = slots;
+	    slots = new LotteryState[size];
+	    System.arraycopy(oldSlots, 0, slots, 0, oldSlots.length);
+
+	    tree = new long[size+1];
+	    for (int i=1; i<=size; i++) {
+		if (slots[i-1] != null)
+		    tree[i] += slots[i-1].effectiveTickets;
+
+		int parent = i + (i&-i);
+		if (parent <= size)
+		    tree[parent] += tree[i];
+	    }
+
+	    free = new int[size];
+	    numFree = 0;
+	    for (int i=size-1; i>=oldSlots.length; i--)
+		free[numFree++] = i;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread waiting in each slot, or <tt>null</tt>. */
+	private LotteryState[] slots = new LotteryState[0];
+	/** The Fenwick tree of tickets over the slots, indexed from 1. */
+	private long[] tree = new long[1];
+	/** A stack of the empty slots. */
+	private int[] free = new int[0];
+	private int numFree = 0;
+	private long totalTickets = 0;
+
+	/** The thread holding the resource, if this queue transfers tickets. */
+	private LotteryState owner = null;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler: the tickets
+     * it holds, the tickets donated to it by the threads waiting for the
+     * resources it owns, and the queue it is waiting in, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Return the number of tickets the associated thread holds.
+	 *
+	 * @return	the number of tickets the associated thread holds.
+	 */
+	public int getTickets() {
+	    return tickets;
+	}
+
+	/**
+	 * Return the number of tickets the associated thread holds, plus
+	 * those donated to it.
+	 *
+	 * @return	the effective number of tickets.
+	 */
+	public long getEffectiveTickets() {
+	    return effectiveTickets;
+	}
+
+	/**
+	 * Set the number of tickets the associated thread holds.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    int delta = tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    donate(delta);
+	}
+
+	/**
+	 * Add to the effective tickets of the associated thread. If it is
+	 * waiting, the queue it waits in, and that queue's owner in turn, see
+	 * the same change.
+	 *
+	 * @param	delta	the number of tickets gained.
+	 */
+	void donate(long delta) {
+	    effectiveTickets += delta;
+
+	    if (waitQueue != null)
+		waitQueue.change(slot, delta);
+	}
+
+	/**
+	 * Called when the associated thread waits for access to the resource
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    waitQueue.setOwner(this);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets the associated thread holds. */
+	protected int tickets = 0;
+	/** The tickets it holds, plus those donated to it. */
+	protected long effectiveTickets = 0;
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	protected LotteryQueue waitQueue = null;
+	/** The slot it occupies in that queue. */
+	private int slot;
     }
 }
@@ -96,6 +96,152 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Test this scheduler. If <tt>PriorityScheduler.benchmarkDepth</tt> is
+     * set and the kernel uses a priority scheduler, other than a lottery
+     * scheduler, run the donation benchmark.
+     */
+    public static void selfTest() {
+	int depth = Config.getInteger("PriorityScheduler.benchmarkDepth", 0);
+	int numWaiters =
+	    Config.getInteger("PriorityScheduler.benchmarkWaiters", 100);
+
+	if (depth > 0 && ThreadedKernel.scheduler instanceof PriorityScheduler &&
+	    !(ThreadedKernel.scheduler instanceof LotteryScheduler))
+	    benchmark(depth, numWaiters);
+    }
+
+    /**
+     * Build a chain of threads, each holding one lock and waiting for the
+     * next, with the current thread holding the last, then have the
+     * specified number of threads of every priority wait for the lock at the
+     * head of the chain, so that each of their donations has to travel the
+     * length of the chain. Print how long this took and the priority donated
+     * to the current thread, then let everything unwind. Before the waiters
+     * arrive, also time raising and lowering the priority of a single thread
+     * waiting at the head of the chain, which costs only the donation.
+     */
+    private static void benchmark(int depth, int numWaiters) {
+	final Lock[] locks = new Lock[depth];
+	for (int i=0; i<depth; i++)
+	    locks[i] = new Lock();
+
+	final Semaphore finished = new Semaphore(0);
+	final Semaphore settled = new Semaphore(0);
+	final int numThreads = depth + numWaiters;
+
+	locks[0].acquire();
+	numBlocked = 0;
+
+	// add each link only after the previous one is blocked, so that no
+	// thread can take a lock that belongs further along the chain
+	for (int i=1; i<depth; i++) {
+	    final int link = i;
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			locks[link].acquire();
+			waitFor(locks[link-1]);
+			locks[link-1].release();
+			locks[link].release();
+			finished.V();
+		    }
+		}).setName("chain").fork();
+
+	    while (numBlocked < link)
+		KThread.yield();
+	}
+
+	Runnable waiter = new Runnable() {
+		public void run() {
+		    waitFor(locks[locks.length-1]);
+		    locks[locks.length-1].release();
+		    finished.V();
+		}
+	    };
+
+	KThread probe = new KThread(waiter).setName("probe");
+	probe.fork();
+	while (numBlocked < depth)
+	    KThread.yield();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long startTime = System.nanoTime();
+	for (int i=0; i<numProbes; i++) {
+	    ThreadedKernel.scheduler.setPriority(probe, priorityMaximum);
+	    ThreadedKernel.scheduler.setPriority(probe, priorityDefault);
+	}
+	long probeNanos = System.nanoTime() - startTime;
+
+	startTime = System.nanoTime();
+	long startSwitches = TCB.getNumContextSwitches();
+
+	for (int i=0; i<numWaiters; i++) {
+	    KThread thread = new KThread(waiter).setName("waiter");
+	    ThreadedKernel.scheduler.setPriority(thread,
+						  priorityMinimum + i%numLevels);
+	    thread.fork();
+	}
+
+	// lowest priority, so it only runs once every waiter is blocked
+	KThread reporter = new KThread(new Runnable() {
+		public void run() {
+		    while (numBlocked < numThreads)
+			KThread.yield();
+		    settled.V();
+		}
+	    }).setName("reporter");
+	ThreadedKernel.scheduler.setPriority(reporter, priorityMinimum);
+	reporter.fork();
+
+	Machine.interrupt().restore(intStatus);
+
+	settled.P();
+
+	long nanos = System.nanoTime() - startTime;
+
+	intStatus = Machine.interrupt().disable();
+	int donated =
+	    ThreadedKernel.scheduler.getEffectivePriority(KThread.currentThread());
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("PriorityScheduler benchmark: chain of " + depth +
+			   " locks, " + numWaiters + " waiters in " +
+			   (nanos/1000000) + " ms, " +
+			   (TCB.getNumContextSwitches() - startSwitches) +
+			   " context switches, donated priority " + donated +
+			   ", " + (probeNanos / (2L*numProbes)) +
+			   " ns per donation");
+
+	locks[0].release();
+
+	for (int i=0; i<numThreads; i++)
+	    finished.P();
+
+	// every donation went away with the locks
+	intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(thread) ==
+		       ThreadedKernel.scheduler.getPriority(thread));
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Count the current thread as blocked, and wait for the specified lock.
+     */
+    private static void waitFor(Lock lock) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	numBlocked++;
+	lock.acquire();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static int numBlocked;
+    private static final int numProbes = 10000;
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -109,6 +255,9 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;    
 
+    /** The number of distinct priorities, one FIFO for each. */
+    private static final int numLevels = priorityMaximum - priorityMinimum + 1;
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -123,7 +272,10 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. Threads of each
+     * priority wait in a FIFO of their own, linked through their
+     * <tt>ThreadState</tt>s, and a bitmask records which FIFOs are non-empty,
+     * so adding, removing and choosing a thread all take constant time.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +294,17 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState state = pickNextThread();
+	    if (state == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(state);
+	    state.acquire(this);
+
+	    return state.thread;
 	}
 
 	/**
@@ -154,13 +315,125 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (occupied == 0)
+		return null;
+
+	    return heads[31 - Integer.numberOfLeadingZeros(occupied)];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=numLevels-1; level>=0; level--) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(" " + s.thread + "(" + level + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a thread to the back of the FIFO for its effective priority.
+	 */
+	void add(ThreadState state) {
+	    link(state);
+	    updateDonation();
+	}
+
+	/**
+	 * Remove a waiting thread from its FIFO.
+	 */
+	void remove(ThreadState state) {
+	    unlink(state);
+	    updateDonation();
+	}
+
+	/**
+	 * Move a waiting thread whose effective priority changed to the back
+	 * of the FIFO for its new effective priority.
+	 */
+	void requeue(ThreadState state) {
+	    unlink(state);
+	    link(state);
+	    updateDonation();
+	}
+
+	private void link(ThreadState state) {
+	    int level = state.getEffectivePriority() - priorityMinimum;
+
+	    state.waitQueue = this;
+	    state.level = level;
+	    state.next = null;
+	    state.prev = tails[level];
+
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+	    tails[level] = state;
+
+	    occupied |= 1 << level;
+	}
+
+	private void unlink(ThreadState state) {
+	    Lib.assertTrue(state.waitQueue == this);
+
+	    int level = state.level;
+
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    if (heads[level] == null)
+		occupied &= ~(1 << level);
+
+	    state.waitQueue = null;
+	    state.next = state.prev = null;
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, taking the
+	 * donation of its waiting threads away from the previous owner.
+	 */
+	void setOwner(ThreadState state) {
+	    if (!transferPriority || owner == state)
+		return;
+
+	    ThreadState previous = owner;
+	    int level = donation;
+
+	    if (previous != null && level >= 0) {
+		donation = -1;
+		previous.removeDonation(level);
+	    }
+
+	    owner = state;
+	    updateDonation();
+	}
+
+	/**
+	 * Bring the donation to the owner up to date with the highest
+	 * priority now waiting. Only the owner's effective priority is
+	 * recalculated, and its own queue only if that changed, so a change
+	 * propagates down a chain of holders as far as it makes a difference.
+	 */
+	private void updateDonation() {
+	    if (!transferPriority || owner == null)
+		return;
+
+	    int level = (occupied == 0) ? -1 :
+		31 - Integer.numberOfLeadingZeros(occupied);
+	    if (level == donation)
+		return;
+
+	    int previous = donation;
+	    donation = level;
+	    owner.changeDonation(previous, level);
 	}
 
 	/**
@@ -168,6 +441,17 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The first and last waiting thread of each priority. */
+	private ThreadState[] heads = new ThreadState[numLevels];
+	private ThreadState[] tails = new ThreadState[numLevels];
+	/** Bit <i>i</i> is set if threads of priority <i>i</i> are waiting. */
+	private int occupied = 0;
+
+	/** The thread holding the resource, if this queue transfers priority. */
+	private ThreadState owner = null;
+	/** The priority this queue is donating to its owner, or -1. */
+	private int donation = -1;
     }
 
     /**
@@ -205,8 +489,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -219,8 +502,46 @@ public class PriorityScheduler extends Scheduler {
 		return;
 	    
 	    this.priority = priority;
-	    
-	    // implement me
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Replace one priority donated to this thread by another, where
+	 * -1 stands for no donation.
+	 */
+	void changeDonation(int previous, int level) {
+	    if (previous >= 0 && --donors[previous] == 0)
+		donorMask &= ~(1 << previous);
+	    if (level >= 0 && donors[level]++ == 0)
+		donorMask |= 1 << level;
+
+	    updateEffectivePriority();
+	}
+
+	void removeDonation(int level) {
+	    changeDonation(level, -1);
+	}
+
+	/**
+	 * Recalculate the effective priority from the base priority and the
+	 * highest donation. If it changed and this thread is waiting, it
+	 * moves to the back of its new priority's FIFO, which passes the
+	 * change on to that queue's owner.
+	 */
+	private void updateEffectivePriority() {
+	    int effective = priority;
+	    if (donorMask != 0)
+		effective = Math.max(effective, priorityMinimum +
+				     31 - Integer.numberOfLeadingZeros(donorMask));
+
+	    if (effective == effectivePriority)
+		return;
+
+	    effectivePriority = effective;
+
+	    if (waitQueue != null)
+		waitQueue.requeue(this);
 	}
 
 	/**
@@ -236,7 +557,9 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    waitQueue.add(this);
 	}
 
 	/**
@@ -250,12 +573,29 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    waitQueue.setOwner(this);
 	}	
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The priority of the associated thread, including donations. */
+	protected int effectivePriority;
+
+	/**
+	 * The number of owned queues donating each priority, and a bitmask of
+	 * the priorities donated by at least one.
+	 */
+	private int[] donors = new int[numLevels];
+	private int donorMask = 0;
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	protected PriorityQueue waitQueue = null;
+	/** The FIFO this thread is waiting in, and its neighbours there. */
+	private int level;
+	private ThreadState next = null, prev = null;
     }
 }
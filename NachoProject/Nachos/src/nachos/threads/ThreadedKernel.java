@@ -41,14 +41,18 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>Interrupt</tt>, and <tt>ElevatorBank</tt>
+     * classes. Note that the autograder never calls this method, so it is
+     * safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Interrupt.selfTest();
+	Alarm.selfTest();
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -131,14 +131,14 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	int memorySize = Machine.processor().getNumPhysPages() * pageSize;
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memorySize)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = Math.min(length, memorySize-vaddr);
+	Machine.processor().readPhysical(vaddr, data, offset, amount);
 
 	return amount;
     }
@@ -174,14 +174,14 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	int memorySize = Machine.processor().getNumPhysPages() * pageSize;
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memorySize)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = Math.min(length, memorySize-vaddr);
+	Machine.processor().writePhysical(vaddr, data, offset, amount);
 
 	return amount;
     }
@@ -254,23 +254,28 @@ public class UserProcess {
 	    return false;
 
 	// store arguments in last page
-	int entryOffset = (numPages-1)*pageSize;
-	int stringOffset = entryOffset + args.length*4;
+	int argsOffset = (numPages-1)*pageSize;
 
 	this.argc = args.length;
-	this.argv = entryOffset;
+	this.argv = argsOffset;
+
+	// build the argv[] pointers and strings, then write them all at once
+	byte[] argsPage = new byte[argsSize];
+	int entryOffset = 0;
+	int stringOffset = args.length*4;
 	
 	for (int i=0; i<argv.length; i++) {
-	    byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-	    Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
+	    Lib.bytesFromInt(argsPage, entryOffset, argsOffset + stringOffset);
 	    entryOffset += 4;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-		       argv[i].length);
+	    System.arraycopy(argv[i], 0, argsPage, stringOffset,
+			     argv[i].length);
 	    stringOffset += argv[i].length;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
+	    argsPage[stringOffset] = 0;
 	    stringOffset += 1;
 	}
 
+	Lib.assertTrue(writeVirtualMemory(argsOffset, argsPage) == argsSize);
+
 	return true;
     }
 